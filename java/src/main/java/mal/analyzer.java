@@ -0,0 +1,1494 @@
+package mal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import mal.env.Env;
+import mal.types.LazySeqException;
+import mal.types.MalError;
+import mal.types.MalException;
+import mal.types.MalFunction;
+import mal.types.MalHash;
+import mal.types.MalLazySeq;
+import mal.types.MalList;
+import mal.types.MalSequence;
+import mal.types.MalSymbol;
+import mal.types.MalType;
+import mal.types.MalUserFunction;
+import mal.types.MalVector;
+
+public class analyzer {
+    // The analyzer turns a form into a tree of executable nodes. Special forms
+    // are recognized once, when the form is analyzed, so evaluating the tree
+    // doesn't have to compare the head of every list against the names of the
+    // special forms again. Macro calls cannot be recognized up front, because
+    // macros are defined at runtime, so they are expanded by the call node that
+    // encounters them.
+    //
+    // Symbols are resolved during analysis as well. A symbol bound by an
+    // enclosing fn*, let* or catch* form refers to a slot in one of the frames
+    // of the environment chain, identified by its depth (the number of frames
+    // to skip) and its index in the frame. Any other symbol is looked up by
+    // name in the global environment.
+    //
+    // A fn* whose body doesn't refer to any variable of an enclosing frame
+    // doesn't need the environment it is evaluated in. Evaluating it returns
+    // the same function every time, whose frames link directly to the global
+    // environment, so a lambda nested in a loop or a hot function costs
+    // nothing to create and doesn't keep the enclosing frames alive.
+
+    /**
+     * An analyzed form.
+     * <p>
+     * A node that was analyzed in tail position may return a tail call instead
+     * of a value. Use run() to evaluate a node to its final value.
+     */
+    public abstract static class Node {
+        public abstract MalType eval(Env env) throws MalException;
+
+        // The number of nodes in the tree rooted at this node.
+        int size() {
+            return 1;
+        }
+
+        public MalType run(Env env) throws MalException {
+            return force(eval(env));
+        }
+    }
+
+    static int totalSize(Node[] nodes) {
+        int size = 0;
+        for (Node node : nodes) {
+            size += node.size();
+        }
+        return size;
+    }
+
+    /**
+     * A pending call of a user function.
+     * <p>
+     * Tail calls of user functions are not performed by the call node itself
+     * but returned to the nearest enclosing function invocation, which runs
+     * them in a loop. This keeps the Java stack from growing on tail calls.
+     * The arguments have already been bound when the tail call is returned.
+     */
+    private static final class TailCall extends MalType {
+        final Lambda lambda;
+        final Env env;
+
+        TailCall(Lambda lambda, Env env) {
+            this.lambda = lambda;
+            this.env = env;
+        }
+
+        @Override
+        public Object getJValue() {
+            return this;
+        }
+
+        @Override
+        public String pr_str(boolean readably) {
+            return "#<tail-call>";
+        }
+    }
+
+    // Return a tail call of fn if it is a user function, or call it right away
+    // if it isn't. Only the first nArgs of the arguments are passed.
+    static MalType tailCall(MalFunction fn, int nArgs, MalType arg1, MalType arg2, MalType arg3) throws MalException {
+        if (fn instanceof MalUserFunction) {
+            MalUserFunction userFn = (MalUserFunction)fn;
+            return new TailCall(userFn.lambda, userFn.lambda.bind(userFn.env, nArgs, arg1, arg2, arg3));
+        }
+
+        switch (nArgs) {
+        case 0: return fn.apply0();
+        case 1: return fn.apply1(arg1);
+        case 2: return fn.apply2(arg1, arg2);
+        default: return fn.apply3(arg1, arg2, arg3);
+        }
+    }
+
+    static MalType tailCall(MalFunction fn, MalType[] args) throws MalException {
+        if (fn instanceof MalUserFunction) {
+            MalUserFunction userFn = (MalUserFunction)fn;
+            return new TailCall(userFn.lambda, userFn.lambda.bind(userFn.env, args));
+        }
+        return fn.applyN(args);
+    }
+
+    static MalType force(MalType result) throws MalException {
+        while (result instanceof TailCall) {
+            TailCall call = (TailCall)result;
+            result = call.lambda.enter(call.env);
+        }
+        return result;
+    }
+
+    /**
+     * Call a user function.
+     *
+     * @param lambda The code of the function to be called.
+     * @param env The frame the arguments have been bound in.
+     */
+    public static MalType invoke(Lambda lambda, Env env) throws MalException {
+        if (vm.enabled) return vm.call(lambda, env);
+        if (machine.enabled) return machine.execute(lambda.body, env);
+        return force(lambda.enter(env));
+    }
+
+    /**
+     * The code of a fn* form.
+     * <p>
+     * A lambda is shared by all functions created by evaluating the same fn*
+     * form. It holds the parameter list and the analyzed body. The body starts
+     * out interpreted and is replaced by a compiled version once the lambda
+     * has been called often enough (see jit).
+     */
+    public static final class Lambda {
+        final MalSymbol[] names;
+        final int nParams;
+        final boolean variadic;
+        Node body;
+        // The number of calls so far, or -1 once the body has been handed to
+        // the compiler.
+        int calls = 0;
+        // The body compiled for the VM, once the function has run on it.
+        vm.Chunk chunk = null;
+        // The symbol the function was first def!-ed under, and its counts in
+        // the current profile.
+        MalSymbol name = null;
+        profiler.Stats stats = null;
+
+        Lambda(MalSymbol[] names, int nParams, boolean variadic, Node body) {
+            this.names = names;
+            this.nParams = nParams;
+            this.variadic = variadic;
+            this.body = body;
+        }
+
+        // Called by every bind(), i.e., once per call. Extra arguments are
+        // ignored.
+        private void checkArity(int nArgs) throws MalException {
+            metrics.calls++;
+            budget.step();
+            if (nArgs < nParams)
+                throw new MalException("Wrong number of arguments: expected " + nParams + ", received " + nArgs + ".");
+        }
+
+        Env bind(Env outer, MalList args) throws MalException {
+            checkArity(args.size());
+
+            Env env = new Env(outer, names);
+            MalType[] slots = env.slots;
+            for (int i = 0; i < nParams; i++) {
+                slots[i] = args.first();
+                args = args.rest();
+            }
+            // The rest parameter shares the tail of the arguments.
+            if (variadic)
+                slots[nParams] = args;
+
+            return env;
+        }
+
+        Env bind(Env outer, MalType[] args) throws MalException {
+            checkArity(args.length);
+
+            Env env = new Env(outer, names);
+            System.arraycopy(args, 0, env.slots, 0, nParams);
+            if (variadic)
+                env.slots[nParams] = new MalList(args, nParams, args.length);
+
+            return env;
+        }
+
+        // Bind the first nArgs of up to three arguments.
+        Env bind(Env outer, int nArgs, MalType arg1, MalType arg2, MalType arg3) throws MalException {
+            checkArity(nArgs);
+
+            Env env = new Env(outer, names);
+            MalType[] slots = env.slots;
+            if (nParams > 0) slots[0] = arg1;
+            if (nParams > 1) slots[1] = arg2;
+            if (nParams > 2) slots[2] = arg3;
+            if (variadic) {
+                MalList rest = new MalList();
+                for (int i = nArgs - 1; i >= nParams; i--) {
+                    rest = rest.cons(i == 0 ? arg1 : i == 1 ? arg2 : arg3);
+                }
+                slots[nParams] = rest;
+            }
+
+            return env;
+        }
+
+        MalType enter(Env env) throws MalException {
+            if (calls >= 0 && ++calls >= jit.threshold) {
+                calls = -1;
+                body = jit.compile(body);
+            }
+            if (profiler.tracking) return profiler.enter(this, env);
+            return body.eval(env);
+        }
+
+        String displayName() {
+            if (name != null) return name.getJValue();
+
+            StringBuilder sb = new StringBuilder("(fn* (");
+            for (int i = 0; i < nParams; i++) {
+                if (i > 0) sb.append(' ');
+                sb.append(names[i].getJValue());
+            }
+            if (variadic) sb.append(nParams > 0 ? " & " : "& ").append(names[nParams].getJValue());
+            return sb.append("))").toString();
+        }
+    }
+
+    /**
+     * The lexical scope of a form.
+     * <p>
+     * A scope lists the symbols bound in a frame, in slot order, and links to
+     * the scope of the enclosing frame. The outermost form has no scope.
+     */
+    static final class Scope {
+        final Scope parent;
+        final MalSymbol[] names;
+        // Symbols added to the frame with def!. These don't have a slot, so
+        // they're looked up by name.
+        List<MalSymbol> defined = null;
+        // Whether the frame is that of a function, and the slots of the
+        // variables if it is that of a loop*. A recur jumps back to the
+        // innermost loop*, but not out of a function.
+        boolean function = false;
+        int[] loopSlots = null;
+        // Whether a function created in the frame refers to one of its
+        // variables. A recur can't rebind the variables of such a loop* in
+        // place, since the function would see the new values.
+        boolean closedOver = false;
+        // Whether the body of the function of this frame refers to a variable
+        // of an enclosing frame, and whether the function has been created
+        // without its environment because it didn't.
+        boolean captures = false;
+        boolean shared = false;
+        // Whether a macro expansion in the body has referred to an enclosing
+        // frame after the function was shared. The fn* is then analyzed
+        // again for the functions it creates from then on.
+        boolean stale = false;
+        // The calls in the body of the function whose head is a global, any
+        // of which may be a macro call whose expansion refers to an enclosing
+        // frame, and the macro epoch up to which they have been expanded.
+        List<Call> globalCalls = null;
+        int expandedEpoch = -1;
+        // Whether the values of a let* or loop* are being analyzed. The
+        // slots are still empty then, so a symbol may refer to an outer
+        // binding of the same name.
+        boolean binding = false;
+        // In the outermost scope, the global references in it and in the
+        // scopes nested in it. A def! in a frame is analyzed after the
+        // references that come before it, which it may shadow as well.
+        List<GlobalRef> globalRefs = null;
+
+        Scope(Scope parent, MalSymbol[] names) {
+            this.parent = parent;
+            this.names = names;
+        }
+
+        int indexOf(MalSymbol symbol) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] == symbol) return i;
+            }
+            return -1;
+        }
+
+        void define(MalSymbol symbol) {
+            if (indexOf(symbol) >= 0 || isDefined(symbol)) return;
+            if (defined == null) defined = new ArrayList<>();
+            defined.add(symbol);
+
+            Scope root = this;
+            while (root.parent != null) {
+                root = root.parent;
+            }
+            if (root.globalRefs == null) return;
+            for (GlobalRef ref : root.globalRefs) {
+                if (ref.symbol == symbol && ref.within(this) && capture(ref.scope, this))
+                    ref.dynamic = true;
+            }
+        }
+
+        boolean isDefined(MalSymbol symbol) {
+            return defined != null && defined.contains(symbol);
+        }
+
+        // Add symbol to the list of names, unless it's already there.
+        static int addName(List<MalSymbol> names, MalSymbol symbol) {
+            int index = names.indexOf(symbol);
+            if (index >= 0) return index;
+            names.add(symbol);
+            return names.size() - 1;
+        }
+    }
+
+    static class Const extends Node {
+        final MalType value;
+
+        Const(MalType value) {
+            this.value = value;
+        }
+
+        @Override
+        public MalType eval(Env env) {
+            return value;
+        }
+    }
+
+    abstract static class SymbolRef extends Node {
+        final MalSymbol symbol;
+
+        SymbolRef(MalSymbol symbol) {
+            this.symbol = symbol;
+        }
+
+        MalType notFound() throws MalException {
+            throw new MalException("'" + symbol.getJValue() + "' not found");
+        }
+    }
+
+    // A symbol bound in an enclosing frame.
+    static class LocalRef extends SymbolRef {
+        final int depth;
+        final int slot;
+
+        LocalRef(MalSymbol symbol, int depth, int slot) {
+            super(symbol);
+            this.depth = depth;
+            this.slot = slot;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            Env frame = env;
+            for (int i = depth; i > 0; i--) {
+                frame = frame.outer;
+            }
+
+            MalType result = frame.slots[slot];
+            if (result != null) return result;
+
+            // The slot is only empty while a let* is still binding it, e.g., in
+            // (let* (x x) ...). The symbol then refers to an outer binding.
+            result = frame.outer == null ? null : frame.outer.get(symbol);
+            if (result == null) return notFound();
+            else return result;
+        }
+    }
+
+    // A symbol that isn't bound lexically. It is looked up by name in the
+    // global environment, the outermost one, unless a def! in an enclosing
+    // frame that was analyzed later binds it. It is then looked up like a
+    // DynamicRef.
+    //
+    // The node remembers the result of the last lookup, which stays valid until
+    // the next def!, so that in the steady state a call to a global function
+    // doesn't have to search the environment.
+    static class GlobalRef extends SymbolRef {
+        final Scope scope;
+        boolean dynamic = false;
+        Env cachedEnv = null;
+        int cachedVersion;
+        MalType cachedValue;
+
+        GlobalRef(MalSymbol symbol, Scope scope) {
+            super(symbol);
+            this.scope = scope;
+        }
+
+        boolean within(Scope outer) {
+            for (Scope s = scope; s != null; s = s.parent) {
+                if (s == outer) return true;
+            }
+            return false;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            if (dynamic) {
+                MalType result = env.get(symbol);
+                if (result == null) return notFound();
+                else return result;
+            }
+
+            Env globalEnv = globalEnv(env);
+
+            if (globalEnv == cachedEnv && cachedVersion == Env.version) return cachedValue;
+
+            MalType result = globalEnv.get(symbol);
+            if (result == null) return notFound();
+
+            cachedEnv = globalEnv;
+            cachedVersion = Env.version;
+            cachedValue = result;
+            return result;
+        }
+    }
+
+    // A symbol that was added to a frame with def!. It is looked up by name,
+    // starting at the innermost frame.
+    private static class DynamicRef extends SymbolRef {
+        DynamicRef(MalSymbol symbol) {
+            super(symbol);
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            MalType result = env.get(symbol);
+            if (result == null) return notFound();
+            else return result;
+        }
+    }
+
+    static Env globalEnv(Env env) {
+        while (env.outer != null) {
+            env = env.outer;
+        }
+        return env;
+    }
+
+    private static SymbolRef resolve(MalSymbol symbol, Scope scope) {
+        int depth = 0;
+
+        for (Scope s = scope; s != null; s = s.parent) {
+            if (s.isDefined(symbol)) {
+                capture(scope, s);
+                return new DynamicRef(symbol);
+            }
+
+            int slot = s.indexOf(symbol);
+            if (slot >= 0) {
+                if (!capture(scope, s)) return new GlobalRef(symbol, null);
+                if (s.binding) resolve(symbol, s.parent);
+                return new LocalRef(symbol, depth, slot);
+            }
+
+            depth++;
+        }
+
+        GlobalRef ref = new GlobalRef(symbol, scope);
+        if (scope != null) {
+            Scope root = scope;
+            while (root.parent != null) {
+                root = root.parent;
+            }
+            if (root.globalRefs == null) root.globalRefs = new ArrayList<>();
+            root.globalRefs.add(ref);
+        }
+        return ref;
+    }
+
+    // Record that the functions between scope and the enclosing scope outer
+    // refer to a variable of outer. A macro expansion may do so for a
+    // function that has already been shared, which can no longer reach outer,
+    // so the symbol is looked up globally instead; return false then. Such a
+    // function is marked stale, so that its fn* is analyzed again.
+    private static boolean capture(Scope scope, Scope outer) {
+        boolean reachable = true;
+        for (Scope s = scope; s != outer; s = s.parent) {
+            if (s.shared) {
+                s.stale = true;
+                reachable = false;
+            }
+        }
+        if (!reachable) return false;
+        for (Scope s = scope; s != outer; s = s.parent) {
+            if (s.function) {
+                s.captures = true;
+                outer.closedOver = true;
+            }
+        }
+        return true;
+    }
+
+    // A special form that was malformed. The error is only raised when the form
+    // is evaluated, just as it would be if the form hadn't been analyzed first.
+    private static class Fail extends Node {
+        final MalException error;
+
+        Fail(MalException error) {
+            this.error = error;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            throw error;
+        }
+    }
+
+    static class Def extends Node {
+        final MalSymbol symbol;
+        final Node value;
+        // Whether this redefines a core function, which invalidates the
+        // optimizer's folded calls.
+        final boolean redefinesCore;
+
+        Def(MalSymbol symbol, Node value) {
+            this.symbol = symbol;
+            this.value = value;
+            this.redefinesCore = core.ns.containsKey(symbol);
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            return assign(env, value.eval(env));
+        }
+
+        MalType assign(Env env, MalType evaledValue) {
+            env.set(symbol, evaledValue);
+            if (evaledValue instanceof MalUserFunction) nameLambda((MalUserFunction)evaledValue);
+            if (redefinesCore) optimizer.redefine(symbol);
+            return evaledValue;
+        }
+
+        void nameLambda(MalUserFunction fn) {
+            Lambda lambda = fn.getLambda();
+            if (lambda.name == null) lambda.name = symbol;
+        }
+
+        @Override
+        int size() {
+            return 1 + value.size();
+        }
+    }
+
+    // Incremented by every defmacro!, which invalidates all cached macro
+    // expansions.
+    private static int macroEpoch = 0;
+
+    private static class DefMacro extends Def {
+        DefMacro(MalSymbol symbol, Node value) {
+            super(symbol, value);
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            // The function may be shared by other evaluations of its fn*, so
+            // the macro is a copy.
+            MalUserFunction fn = value.eval(env).assertType(MalUserFunction.class).clone();
+            fn.setMacro();
+            env.set(symbol, fn);
+            nameLambda(fn);
+            if (redefinesCore) optimizer.redefine(symbol);
+            macroEpoch++;
+            return fn;
+        }
+    }
+
+    static class Let extends Node {
+        final MalSymbol[] names;
+        final int[] slots;
+        final Node[] values;
+        final Node body;
+
+        Let(MalSymbol[] names, int[] slots, Node[] values, Node body) {
+            this.names = names;
+            this.slots = slots;
+            this.values = values;
+            this.body = body;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            Env letEnv = new Env(env, names);
+
+            for (int i = 0; i < values.length; i++) {
+                letEnv.slots[slots[i]] = values[i].eval(letEnv);
+            }
+            return body.eval(letEnv);
+        }
+
+        @Override
+        int size() {
+            return 1 + totalSize(values) + body.size();
+        }
+    }
+
+    // The value a recur returns to its loop* after rebinding the loop's
+    // variables.
+    static final MalType RECUR = new MalType() {
+            @Override
+            public Object getJValue() {
+                return this;
+            }
+
+            @Override
+            public String pr_str(boolean readably) {
+                return "#<recur>";
+            }
+        };
+
+    // A loop* binds its variables like a let*, but its frame is reused: a
+    // recur assigns new values to the slots and the body is evaluated again.
+    // If a function created in the body refers to the frame, each iteration
+    // gets a copy instead, which the recur hands over in recurFrame.
+    static class Loop extends Node {
+        final MalSymbol[] names;
+        final int[] slots;
+        final Node[] values;
+        final Node body;
+        final boolean tail;
+
+        Loop(MalSymbol[] names, int[] slots, Node[] values, Node body, boolean tail) {
+            this.names = names;
+            this.slots = slots;
+            this.values = values;
+            this.body = body;
+            this.tail = tail;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            Env loopEnv = new Env(env, names);
+
+            for (int i = 0; i < values.length; i++) {
+                loopEnv.slots[slots[i]] = values[i].eval(loopEnv);
+            }
+
+            MalType result;
+            while ((result = body.eval(loopEnv)) == RECUR) {
+                loopEnv = nextFrame(loopEnv);
+            }
+
+            // The body is in tail position even if the loop isn't, because
+            // a recur has to be.
+            if (tail) return result;
+            else return force(result);
+        }
+
+        @Override
+        int size() {
+            return 1 + totalSize(values) + body.size();
+        }
+    }
+
+    // The frame a recur rebound the variables in, if it isn't that of the
+    // previous iteration.
+    static Env recurFrame = null;
+
+    // Return the frame for the next iteration of a loop* whose frame was
+    // frame, after a recur.
+    static Env nextFrame(Env frame) {
+        Env next = recurFrame;
+        if (next == null) return frame;
+        recurFrame = null;
+        return next;
+    }
+
+    static class Recur extends Node {
+        // The frame of the loop, and the slots of its variables.
+        final int depth;
+        final int[] slots;
+        final Node[] values;
+        final Scope loop;
+
+        Recur(int depth, int[] slots, Node[] values, Scope loop) {
+            this.depth = depth;
+            this.slots = slots;
+            this.values = values;
+            this.loop = loop;
+        }
+
+        // Return the frame to rebind the variables of the loop in: a copy
+        // of its frame if a function may have kept that one. Functions in
+        // a macro expansion may start referring to it at any time, so this
+        // is checked on every iteration.
+        Env frame(Env loopEnv) {
+            if (loop.closedOver) return loopEnv.copy();
+            else return loopEnv;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            budget.step();
+
+            Env loopEnv = env;
+            for (int i = depth; i > 0; i--) {
+                loopEnv = loopEnv.outer;
+            }
+
+            // All values are evaluated before any variable is rebound.
+            if (values.length == 1) {
+                MalType result = values[0].eval(env);
+                loopEnv = frame(loopEnv);
+                loopEnv.slots[slots[0]] = result;
+            } else {
+                MalType[] results = new MalType[values.length];
+                for (int i = 0; i < values.length; i++) {
+                    results[i] = values[i].eval(env);
+                }
+                loopEnv = frame(loopEnv);
+                for (int i = 0; i < values.length; i++) {
+                    loopEnv.slots[slots[i]] = results[i];
+                }
+            }
+            if (loop.closedOver) recurFrame = loopEnv;
+            return RECUR;
+        }
+
+        @Override
+        int size() {
+            return 1 + totalSize(values);
+        }
+    }
+
+    static class Do extends Node {
+        final Node[] body;
+
+        Do(Node[] body) {
+            this.body = body;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            int last = body.length - 1;
+
+            for (int i = 0; i < last; i++) {
+                body[i].eval(env);
+            }
+            return body[last].eval(env);
+        }
+
+        @Override
+        int size() {
+            return 1 + totalSize(body);
+        }
+    }
+
+    static class If extends Node {
+        final Node test;
+        final Node then;
+        final Node otherwise;
+
+        If(Node test, Node then, Node otherwise) {
+            this.test = test;
+            this.then = then;
+            this.otherwise = otherwise;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            MalType result = test.eval(env);
+
+            if (result == types.Nil || result == types.False) return otherwise.eval(env);
+            else return then.eval(env);
+        }
+
+        @Override
+        int size() {
+            return 1 + test.size() + then.size() + otherwise.size();
+        }
+    }
+
+    private static class Fn extends Node {
+        final MalSequence params;
+        final MalType ast;
+        Lambda lambda;
+        Scope scope;
+
+        // The function returned by every evaluation if the body doesn't refer
+        // to the enclosing frames.
+        MalUserFunction shared = null;
+
+        Fn(MalSequence params, MalType ast, Lambda lambda, Scope scope) {
+            this.params = params;
+            this.ast = ast;
+            this.lambda = lambda;
+            this.scope = scope;
+        }
+
+        private MalUserFunction create(Env env) {
+            MalUserFunction userFn = new MalUserFunction();
+
+            userFn.setAst(ast);
+            userFn.setParams(params);
+            userFn.setEnv(env);
+            userFn.setLambda(lambda);
+
+            return userFn;
+        }
+
+        // Expand the macro calls in the body, which may turn out to refer to
+        // the enclosing frames: the function can't be shared then, and a
+        // loop* whose frame it refers to has to copy the frame on recur. A
+        // call that fails to expand is left to fail when it's evaluated.
+        private void expandMacroCalls(Env env) {
+            int epoch = macroEpoch;
+            Env globalEnv = globalEnv(env);
+
+            // Expanding a call may add more calls. Their heads are globals,
+            // which need not be defined yet.
+            List<Call> calls = scope.globalCalls;
+            for (int i = 0; calls != null && i < calls.size(); i++) {
+                Call call = calls.get(i);
+                MalType value = globalEnv.get(((SymbolRef)call.head).symbol);
+                if (!call.isMacroCall(value)) continue;
+                try {
+                    call.expand((MalUserFunction)value);
+                } catch(MalException ex) {
+                }
+            }
+            scope.expandedEpoch = epoch;
+        }
+
+        // Analyze the fn* again, leaving the functions created so far with
+        // the old body.
+        private void reanalyze() throws MalException {
+            Fn fn = analyzeFn(params, ast, scope.parent);
+            fn.lambda.name = lambda.name;
+            lambda = fn.lambda;
+            scope = fn.scope;
+            shared = null;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            if (scope.expandedEpoch != macroEpoch) expandMacroCalls(env);
+            if (scope.stale) {
+                reanalyze();
+                expandMacroCalls(env);
+            }
+            if (scope.captures) return create(env);
+
+            Env globalEnv = globalEnv(env);
+            if (shared == null || shared.getEnv() != globalEnv) {
+                scope.shared = true;
+                shared = create(globalEnv);
+            }
+            return shared;
+        }
+
+        @Override
+        int size() {
+            return 1 + lambda.body.size();
+        }
+    }
+
+    private static class MacroExpand extends Node {
+        final MalType form;
+
+        MacroExpand(MalType form) {
+            this.form = form;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            return macroexpand(form, env);
+        }
+    }
+
+    static class TryCatch extends Node {
+        final Node body;
+        final MalSymbol[] catchVar;
+        final Node handler;
+
+        TryCatch(Node body, MalSymbol[] catchVar, Node handler) {
+            this.body = body;
+            this.catchVar = catchVar;
+            this.handler = handler;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            try {
+                return body.run(env);
+            } catch(MalException | LazySeqException caught) {
+                MalException ex = LazySeqException.unwrap(caught);
+                metrics.exceptions++;
+                Env catchEnv = new Env(env, catchVar);
+                catchEnv.slots[0] = new MalError(ex.getErrVal());
+                return handler.run(catchEnv);
+            }
+        }
+
+        @Override
+        int size() {
+            return 1 + body.size() + handler.size();
+        }
+    }
+
+    /**
+     * A node whose value is built from the values of its parts, which are
+     * evaluated in order, such as a vector literal.
+     * <p>
+     * The stack machine and the VM evaluate the parts themselves and then
+     * call build(), so that a call in a part doesn't recurse on the Java
+     * stack.
+     */
+    abstract static class Composite extends Node {
+        final Node[] parts;
+
+        Composite(Node[] parts) {
+            this.parts = parts;
+        }
+
+        abstract MalType build(MalType[] values) throws MalException;
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            MalType[] values = new MalType[parts.length];
+
+            for (int i = 0; i < parts.length; i++) {
+                values[i] = parts[i].eval(env);
+            }
+            return build(values);
+        }
+
+        @Override
+        int size() {
+            return 1 + totalSize(parts);
+        }
+    }
+
+    private static class VectorLiteral extends Composite {
+        VectorLiteral(Node[] elems) {
+            super(elems);
+        }
+
+        @Override
+        MalType build(MalType[] values) {
+            return new MalVector(values);
+        }
+    }
+
+    private static class HashLiteral extends Composite {
+        final MalType[] keys;
+
+        HashLiteral(MalType[] keys, Node[] values) {
+            super(values);
+            this.keys = keys;
+        }
+
+        @Override
+        MalType build(MalType[] values) throws MalException {
+            MalHash result = new MalHash();
+
+            for (int i = 0; i < keys.length; i++) {
+                result = result.assoc(keys[i], values[i]);
+            }
+            return result;
+        }
+    }
+
+    static class Call extends Node {
+        final MalList form;
+        final Scope scope;
+        final Node head;
+        final Node[] args;
+        final boolean tail;
+
+        // The expansion of the most recent macro call at this site, and the
+        // macro and epoch it is valid for.
+        MalUserFunction expandedMacro = null;
+        int expandedEpoch;
+        Node expansion;
+        vm.Chunk expansionChunk;
+
+        Call(MalList form, Scope scope, Node head, Node[] args, boolean tail) {
+            this.form = form;
+            this.scope = scope;
+            this.head = head;
+            this.args = args;
+            this.tail = tail;
+        }
+
+        // Only a list whose head is a symbol can be a macro call.
+        boolean isMacroCall(MalType fn) {
+            return head instanceof SymbolRef && fn instanceof MalUserFunction && ((MalUserFunction)fn).isMacro();
+        }
+
+        // Return the analyzed expansion of this call by macro. The expansion
+        // replaces the call, so it inherits its tail position.
+        Node expand(MalUserFunction macro) throws MalException {
+            if (macro != expandedMacro || expandedEpoch != macroEpoch) {
+                metrics.macroExpansions++;
+                MalType expanded = macro.apply(form.subList(1, form.size()));
+                expansion = analyze(expanded, scope, tail);
+                expansionChunk = null;
+                expandedMacro = macro;
+                expandedEpoch = macroEpoch;
+            }
+            return expansion;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            MalType value = head.eval(env);
+
+            if (isMacroCall(value)) return expand((MalUserFunction)value).eval(env);
+
+            if (!(value instanceof MalFunction)) throw new MalException("Eval error: `" + value + "' is not a function.");
+            MalFunction fn = (MalFunction)value;
+
+            // The arguments are passed as they are evaluated rather than
+            // kept in locals, which would hold on to them, e.g., to the
+            // head of a lazy sequence, for as long as the call runs. For the
+            // same reason, only user functions go through tailCall(), whose
+            // parameters would keep the arguments of a builtin.
+            int nArgs = args.length;
+            if (tail && fn instanceof MalUserFunction) {
+                switch (nArgs) {
+                case 0: return tailCall(fn, 0, null, null, null);
+                case 1: return tailCall(fn, 1, args[0].eval(env), null, null);
+                case 2: return tailCall(fn, 2, args[0].eval(env), args[1].eval(env), null);
+                case 3: return tailCall(fn, 3, args[0].eval(env), args[1].eval(env), args[2].eval(env));
+                default: return tailCall(fn, evalArgs(env));
+                }
+            }
+
+            switch (nArgs) {
+            case 0: return fn.apply0();
+            case 1: return fn.apply1(args[0].eval(env));
+            case 2: return fn.apply2(args[0].eval(env), args[1].eval(env));
+            case 3: return fn.apply3(args[0].eval(env), args[1].eval(env), args[2].eval(env));
+            default: return fn.applyN(evalArgs(env));
+            }
+        }
+
+        MalType[] evalArgs(Env env) throws MalException {
+            MalType[] values = new MalType[args.length];
+            for (int i = 0; i < args.length; i++) {
+                values[i] = args[i].eval(env);
+            }
+            return values;
+        }
+
+        @Override
+        int size() {
+            return 1 + head.size() + totalSize(args);
+        }
+    }
+
+    /**
+     * Analyze a form in tail position.
+     *
+     * @param ast The form to be analyzed.
+     */
+    public static Node analyze(MalType ast) throws MalException {
+        return analyze(ast, null, true);
+    }
+
+    /**
+     * Analyze a form.
+     *
+     * @param ast The form to be analyzed.
+     * @param scope The lexical scope of the form.
+     * @param tail Whether the form is in tail position, i.e., whether its value
+     * is returned by the enclosing function as is.
+     */
+    static Node analyze(MalType ast, Scope scope, boolean tail) throws MalException {
+        if (ast instanceof MalSymbol) return resolve((MalSymbol)ast, scope);
+
+        // A form made by a lazy sequence function, e.g., by a macro that
+        // uses map, is a list.
+        if (ast instanceof MalLazySeq) ast = ((MalLazySeq)ast).toList();
+
+        if (ast instanceof MalList) {
+            MalList astList = (MalList)ast;
+
+            // Empty list is just returned.
+            if (astList.size() == 0) return new Const(ast);
+
+            try {
+                Node special = analyzeSpecial(astList, scope, tail);
+                if (special != null) return special;
+            } catch(MalException ex) {
+                return new Fail(ex);
+            }
+
+            Node head = analyze(astList.get(0), scope, false);
+            Node[] args = analyzeAll(astList.subList(1, astList.size()), scope, false);
+            Call call = new Call(astList, scope, head, args, tail);
+
+            if (head instanceof GlobalRef) {
+                for (Scope s = scope; s != null; s = s.parent) {
+                    if (!s.function) continue;
+                    if (s.globalCalls == null) s.globalCalls = new ArrayList<>();
+                    s.globalCalls.add(call);
+                }
+            }
+            return optimizer.foldCall(call);
+        }
+
+        if (ast instanceof MalVector) {
+            Node[] elems = analyzeAll((MalVector)ast, scope, false);
+            return new VectorLiteral(elems);
+        }
+
+        if (ast instanceof MalHash) {
+            Map<MalType,MalType> astHash = ((MalHash)ast).getJValue();
+            MalType[] keys = new MalType[astHash.size()];
+            Node[] values = new Node[astHash.size()];
+            int i = 0;
+            for (Map.Entry<MalType,MalType> entry : astHash.entrySet()) {
+                keys[i] = entry.getKey();
+                values[i++] = analyze(entry.getValue(), scope, false);
+            }
+            return new HashLiteral(keys, values);
+        }
+
+        return new Const(ast);
+    }
+
+    private static Node[] analyzeAll(MalSequence forms, Scope scope, boolean tail) throws MalException {
+        int size = forms.size();
+        Node[] result = new Node[size];
+
+        int i = 0;
+        for (MalType form : forms.getJValue()) {
+            result[i] = analyze(form, scope, tail && i == size-1);
+            i++;
+        }
+        return result;
+    }
+
+    // Return null if the list is not a special form.
+    private static Node analyzeSpecial(MalList astList, Scope scope, boolean tail) throws MalException {
+        if (!(astList.get(0) instanceof MalSymbol)) return null;
+
+        int size = astList.size();
+
+        switch (((MalSymbol)astList.get(0)).getJValue()) {
+        case "def!":
+            return analyzeDef(astList, scope, false);
+
+        case "defmacro!":
+            return analyzeDef(astList, scope, true);
+
+        case "let*":
+            return analyzeLet(astList, scope, tail);
+
+        case "loop*":
+            return analyzeLoop(astList, scope, tail);
+
+        case "recur":
+            return analyzeRecur(astList, scope, tail);
+
+        case "do":
+            if (size == 1) return new Const(types.Nil);
+            return new Do(analyzeAll(astList.subList(1, size), scope, tail));
+
+        case "if":
+            if (!(size == 3 || size == 4))
+                throw new MalException("Wrong number of arguments: expected 2-3, received " + (size-1) + ".");
+            return optimizer.foldIf(new If(analyze(astList.get(1), scope, false),
+                          analyze(astList.get(2), scope, tail),
+                          size == 4 ? analyze(astList.get(3), scope, tail) : new Const(types.Nil)));
+
+        case "fn*":
+            return analyzeFn(astList, scope);
+
+        case "macroexpand":
+            if (size != 2) throw new MalException("Wrong number of arguments: expected 1, received " + (size-1) + ".");
+            return new MacroExpand(astList.get(1));
+
+        case "quote":
+            if (size != 2) throw new MalException("Wrong number of arguments: expected 1, received " + (size-1) + ".");
+            return new Const(astList.get(1));
+
+        case "quasiquote":
+            if (size != 2) throw new MalException("Wrong number of arguments: expected 1, received " + (size-1) + ".");
+            return analyzeQuasiquote(astList.get(1), scope, tail);
+
+        case "try*":
+            return analyzeTryCatch(astList, scope);
+
+        default:
+            return null;
+        }
+    }
+
+    private static Node analyzeDef(MalList astList, Scope scope, boolean macro) throws MalException {
+        if (astList.size() != 3) throw new MalException("Wrong number of arguments: expected 2, received " + (astList.size()-1) + ".");
+        if (!(astList.get(1) instanceof MalSymbol)) throw new MalException("Cannot define non-symbol: " + astList.get(1).toString());
+
+        MalSymbol symbol = (MalSymbol)astList.get(1);
+        Node value = analyze(astList.get(2), scope, false);
+
+        // A def! inside a function or let* binds the symbol in that frame.
+        if (scope != null) scope.define(symbol);
+
+        if (macro) return new DefMacro(symbol, value);
+        else return new Def(symbol, value);
+    }
+
+    private static Node analyzeLet(MalList astList, Scope scope, boolean tail) throws MalException {
+        if (astList.size() != 3) throw new MalException("Wrong number of arguments: expected 2, received " + (astList.size()-1) + ".");
+        if (!(astList.get(1) instanceof MalSequence)) throw new MalException("Cannot let-bind: " + astList.get(1).toString());
+
+        MalSequence bindList = (MalSequence)astList.get(1);
+        if ((bindList.size() % 2) != 0) throw new MalException("Odd number of elements in bind list.");
+
+        int nBinds = bindList.size() / 2;
+        List<MalSymbol> names = new ArrayList<>(nBinds);
+        int[] slots = new int[nBinds];
+
+        for (int i = 0; i < nBinds; i++) {
+            MalType name = bindList.get(2*i);
+            if (!(name instanceof MalSymbol)) throw new MalException("Cannot define non-symbol: " + name.toString());
+
+            slots[i] = Scope.addName(names, (MalSymbol)name);
+        }
+
+        Scope letScope = new Scope(scope, names.toArray(new MalSymbol[0]));
+        Node[] values = new Node[nBinds];
+
+        letScope.binding = true;
+        for (int i = 0; i < nBinds; i++) {
+            values[i] = analyze(bindList.get(2*i+1), letScope, false);
+        }
+        letScope.binding = false;
+
+        return new Let(letScope.names, slots, values, analyze(astList.get(2), letScope, tail));
+    }
+
+    private static Node analyzeLoop(MalList astList, Scope scope, boolean tail) throws MalException {
+        if (astList.size() != 3) throw new MalException("Wrong number of arguments: expected 2, received " + (astList.size()-1) + ".");
+        if (!(astList.get(1) instanceof MalSequence)) throw new MalException("Cannot loop-bind: " + astList.get(1).toString());
+
+        MalSequence bindList = (MalSequence)astList.get(1);
+        if ((bindList.size() % 2) != 0) throw new MalException("Odd number of elements in bind list.");
+
+        int nBinds = bindList.size() / 2;
+        List<MalSymbol> names = new ArrayList<>(nBinds);
+        int[] slots = new int[nBinds];
+
+        for (int i = 0; i < nBinds; i++) {
+            MalType name = bindList.get(2*i);
+            if (!(name instanceof MalSymbol)) throw new MalException("Cannot define non-symbol: " + name.toString());
+
+            slots[i] = Scope.addName(names, (MalSymbol)name);
+        }
+
+        Scope loopScope = new Scope(scope, names.toArray(new MalSymbol[0]));
+        Node[] values = new Node[nBinds];
+
+        loopScope.binding = true;
+        for (int i = 0; i < nBinds; i++) {
+            values[i] = analyze(bindList.get(2*i+1), loopScope, false);
+        }
+        loopScope.binding = false;
+
+        loopScope.loopSlots = slots;
+        return new Loop(loopScope.names, slots, values, analyze(astList.get(2), loopScope, true), tail);
+    }
+
+    private static Node analyzeRecur(MalList astList, Scope scope, boolean tail) throws MalException {
+        int depth = 0;
+        Scope loopScope = scope;
+        while (loopScope != null && loopScope.loopSlots == null && !loopScope.function) {
+            loopScope = loopScope.parent;
+            depth++;
+        }
+
+        if (loopScope == null || loopScope.loopSlots == null) throw new MalException("recur outside of loop*.");
+        if (!tail) throw new MalException("recur not in tail position.");
+
+        int[] slots = loopScope.loopSlots;
+        if (astList.size() - 1 != slots.length)
+            throw new MalException("Wrong number of arguments to recur: expected " + slots.length + ", received " + (astList.size()-1) + ".");
+
+        return new Recur(depth, slots, analyzeAll(astList.subList(1, astList.size()), scope, false), loopScope);
+    }
+
+    private static Node analyzeFn(MalList astList, Scope scope) throws MalException {
+        if (astList.size() < 3) throw new MalException("fn*: argument list or body missing.");
+        if (astList.size() > 3) throw new MalException("fn*: body must be a single form.");
+
+        if (!(astList.get(1) instanceof MalSequence)) throw new MalException("Cannot let-bind: " + astList.get(1).toString());
+        return analyzeFn((MalSequence)astList.get(1), astList.get(2), scope);
+    }
+
+    private static Fn analyzeFn(MalSequence params, MalType body, Scope scope) throws MalException {
+        List<MalSymbol> names = new ArrayList<>();
+        boolean variadic = false;
+        int nSyms = params.size();
+
+        for (int i = 0; i < nSyms; i++) {
+            MalType param = params.get(i);
+            if (!(param instanceof MalSymbol)) throw new MalException("Cannot bind non-symbol: " + param.toString());
+
+            if (param.getJValue().equals("&")) {
+                if (nSyms == i+1) throw new MalException("Symbol required after `&'.");
+                if (nSyms > i+2) throw new MalException("Multiple symbols after `&'.");
+                names.add(params.get(i+1).assertType(MalSymbol.class));
+                variadic = true;
+                break;
+            }
+            names.add((MalSymbol)param);
+        }
+
+        int nParams = variadic ? names.size() - 1 : names.size();
+        Scope fnScope = new Scope(scope, names.toArray(new MalSymbol[0]));
+        fnScope.function = true;
+
+        Lambda lambda = new Lambda(fnScope.names, nParams, variadic, analyze(body, fnScope, true));
+        return new Fn(params, body, lambda, fnScope);
+    }
+
+    private static final MalSymbol CATCH = MalSymbol.intern("catch*");
+
+    private static Node analyzeTryCatch(MalList astList, Scope scope) throws MalException {
+        if (astList.size() != 3) throw new MalException("Wrong number of arguments: expected 1, received " + (astList.size()-1) + ".");
+
+        MalList catchBlock = astList.get(2).assertType(MalList.class);
+
+        if (catchBlock.size() != 3) throw new MalException("Invalid catch* block.");
+
+        if (catchBlock.get(0) != CATCH)
+            throw new MalException("try* without catch* block.");
+
+        MalSymbol catchVar = catchBlock.get(1).assertType(MalSymbol.class);
+        Scope catchScope = new Scope(scope, new MalSymbol[] { catchVar });
+
+        // TryCatch runs its body and handler to their final value, so they
+        // are not in tail position; in particular, they can't recur.
+        return new TryCatch(analyze(astList.get(1), scope, false), catchScope.names, analyze(catchBlock.get(2), catchScope, false));
+    }
+
+    private static boolean is_macro_call(MalType ast, Env env) {
+        if (ast instanceof MalList) {
+            MalList astList = (MalList)ast;
+
+            if ((astList.size() > 0) && (astList.get(0) instanceof MalSymbol)) {
+                MalType val = env.get((MalSymbol)astList.get(0));
+                if (val instanceof MalUserFunction) {
+                    return ((MalUserFunction)val).isMacro();
+                }
+            }
+        }
+        return false;
+    }
+
+    static MalType macroexpand(MalType ast, Env env) throws MalException {
+        while (is_macro_call(ast, env)) {
+            MalList astList = (MalList)ast;
+            MalUserFunction fn = (MalUserFunction)env.get((MalSymbol)astList.get(0));
+
+            metrics.macroExpansions++;
+            ast = fn.apply(astList.subList(1,astList.size()));
+        }
+
+        return ast;
+    }
+
+    private static boolean is_pair(MalType arg) {
+        if ((arg instanceof MalSequence) && ((MalSequence)arg).size() > 0) return true;
+        else return false;
+    }
+
+    private static boolean is_form(MalType arg, String name) {
+        return is_pair(arg) && isSymbol(((MalSequence)arg).get(0), name);
+    }
+
+    private static boolean isSymbol(MalType arg, String name) {
+        return (arg instanceof MalSymbol) && ((MalSymbol)arg).getJValue().equals(name);
+    }
+
+    // A quasiquoted list that contains unquoted parts. Each part is either a
+    // constant, an unquoted form or a spliced form. Only the unquoted and
+    // spliced forms are evaluated; constant parts are shared between all
+    // lists the template constructs.
+    private static class Quasiquote extends Composite {
+        final boolean[] spliced;
+
+        Quasiquote(Node[] parts, boolean[] spliced) {
+            super(parts);
+            this.spliced = spliced;
+        }
+
+        @Override
+        MalType build(MalType[] values) throws MalException {
+            List<MalType> result = new ArrayList<>(values.length);
+
+            for (int i = 0; i < values.length; i++) {
+                if (spliced[i]) result.addAll(values[i].assertType(MalSequence.class).getJValue());
+                else result.add(values[i]);
+            }
+            return new MalList(result);
+        }
+    }
+
+    /**
+     * Analyze the template of a quasiquote form.
+     * <p>
+     * The template is turned into a plan for constructing its value once,
+     * rather than being rewritten into calls to cons and concat every time it
+     * is evaluated. As before, a quasiquoted vector yields a list.
+     */
+    private static Node analyzeQuasiquote(MalType ast, Scope scope, boolean tail) throws MalException {
+        if (!is_pair(ast)) return new Const(ast);
+
+        MalSequence astList = (MalSequence)ast;
+
+        if (isSymbol(astList.get(0), "unquote")) {
+            if (astList.size() < 2) throw new MalException("unquote: argument missing.");
+            return analyze(astList.get(1), scope, tail);
+        }
+
+        if (!hasUnquote(astList)) return new Const(quotedConstant(astList));
+
+        int size = astList.size();
+        List<Node> parts = new ArrayList<>(size);
+        List<Boolean> spliced = new ArrayList<>(size);
+
+        for (int i = 0; i < size; i++) {
+            MalType elem = astList.get(i);
+
+            // `(a unquote b) is (cons 'a b), i.e., b is the rest of the list.
+            if (i > 0 && isSymbol(elem, "unquote")) {
+                if (i+1 >= size) throw new MalException("unquote: argument missing.");
+                parts.add(analyze(astList.get(i+1), scope, false));
+                spliced.add(true);
+                break;
+            }
+
+            if (is_form(elem, "splice-unquote")) {
+                MalSequence splice = (MalSequence)elem;
+                if (splice.size() < 2) throw new MalException("splice-unquote: argument missing.");
+                parts.add(analyze(splice.get(1), scope, false));
+                spliced.add(true);
+            } else {
+                parts.add(analyzeQuasiquote(elem, scope, false));
+                spliced.add(false);
+            }
+        }
+
+        boolean[] splicedParts = new boolean[spliced.size()];
+        for (int i = 0; i < splicedParts.length; i++) {
+            splicedParts[i] = spliced.get(i);
+        }
+        return new Quasiquote(parts.toArray(new Node[0]), splicedParts);
+    }
+
+    private static boolean hasUnquote(MalType ast) {
+        if (!is_pair(ast)) return false;
+
+        for (MalType elem : ((MalSequence)ast).getJValue()) {
+            if (isSymbol(elem, "unquote") || isSymbol(elem, "splice-unquote")) return true;
+            if (hasUnquote(elem)) return true;
+        }
+        return false;
+    }
+
+    // The value of a template without unquoted parts. Non-empty vectors become
+    // lists, at any depth.
+    private static MalType quotedConstant(MalType ast) {
+        if (!is_pair(ast)) return ast;
+
+        List<MalType> result = new ArrayList<>(((MalSequence)ast).size());
+        for (MalType elem : ((MalSequence)ast).getJValue()) {
+            result.add(quotedConstant(elem));
+        }
+        return new MalList(result);
+    }
+}
@@ -0,0 +1,71 @@
+package mal;
+
+import mal.types.MalException;
+
+public class budget {
+    // Limits on the work a single evaluation may do, so that a runaway
+    // script cannot keep the interpreter busy forever. Every user function
+    // call, every recur, every form passed to EVAL and every element of a
+    // lazy sequence computed or walked, or reduced, is a step. An
+    // evaluation may take at most mal.fuel steps and run for at most
+    // mal.timeout milliseconds; 0, the default, means no limit. The limits
+    // are armed anew by every call of stepA_mal.rep, or by begin().
+    //
+    // A step only decrements a counter. The clock and the remaining fuel are
+    // looked at once the counter runs out, i.e., every CHECK_INTERVAL steps.
+    // When a limit is exceeded, the step throws a MalException. It can be
+    // caught with try*, but every following step throws again until the next
+    // evaluation starts.
+
+    private static final int CHECK_INTERVAL = 1024;
+
+    public static long stepLimit = Long.getLong("mal.fuel", 0);
+    public static long timeLimit = Long.getLong("mal.timeout", 0);
+
+    // The steps left until the next check, the steps left after that, and
+    // the time by which the evaluation has to finish (in terms of
+    // System.nanoTime), if there are limits.
+    private static int countdown = CHECK_INTERVAL;
+    private static long fuel = Long.MAX_VALUE;
+    private static long deadline = 0;
+    private static boolean limited = false;
+
+    /**
+     * Start an evaluation with the current limits.
+     */
+    public static void begin() {
+        limited = stepLimit > 0 || timeLimit > 0;
+        fuel = stepLimit > 0 ? stepLimit : Long.MAX_VALUE;
+        deadline = timeLimit > 0 ? System.nanoTime() + timeLimit * 1000000 : 0;
+        countdown = 0;
+        refill();
+    }
+
+    static void step() throws MalException {
+        if (--countdown < 0) check();
+    }
+
+    private static void refill() {
+        countdown = (int)Math.min(CHECK_INTERVAL, fuel);
+        fuel -= countdown;
+    }
+
+    private static void check() throws MalException {
+        if (!limited) {
+            countdown = CHECK_INTERVAL;
+            return;
+        }
+
+        if (deadline != 0 && System.nanoTime() - deadline > 0) {
+            countdown = 0;
+            throw new MalException("Evaluation exceeded its time limit of " + timeLimit + " ms.");
+        }
+        if (fuel == 0) {
+            countdown = 0;
+            throw new MalException("Evaluation exceeded its limit of " + stepLimit + " steps.");
+        }
+        // This step is the first one of the next interval.
+        refill();
+        countdown--;
+    }
+}
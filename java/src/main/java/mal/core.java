@@ -5,8 +5,8 @@ import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.StringJoiner;
 
@@ -16,7 +16,10 @@ import mal.types.MalFunction;
 import mal.types.MalHash;
 import mal.types.MalInt;
 import mal.types.MalKeyword;
+import mal.types.MalLazySeq;
 import mal.types.MalList;
+import mal.types.MalNumber;
+import mal.types.MalReduced;
 import mal.types.MalSequence;
 import mal.types.MalString;
 import mal.types.MalSymbol;
@@ -25,7 +28,8 @@ import mal.types.MalUserFunction;
 import mal.types.MalVector;
 
 public class core {
-    // Built-in integer arithmetic functions.
+    // Built-in arithmetic functions, on the numeric tower implemented in
+    // numbers.
     //
     // Although these functions are obvious candidates for reduce(), the fact that
     // we need to handle errors makes that too cumbersome.
@@ -85,60 +89,124 @@ public class core {
         }
     }
 
+    // Built-in functions that take a fixed number of arguments implement the
+    // corresponding fixed-arity call, so that calling them doesn't require an
+    // argument list. A call through apply() checks the number of arguments
+    // and unpacks them.
+
+    private abstract static class Function1 extends MalFunction {
+        @Override
+        public MalType apply(MalList args) throws MalException {
+            assertNArgs(args, 1);
+            return apply1(args.get(0));
+        }
+
+        @Override
+        public abstract MalType apply1(MalType arg) throws MalException;
+    }
+
+    private abstract static class Function2 extends MalFunction {
+        @Override
+        public MalType apply(MalList args) throws MalException {
+            assertNArgs(args, 2);
+            return apply2(args.get(0), args.get(1));
+        }
+
+        @Override
+        public abstract MalType apply2(MalType arg1, MalType arg2) throws MalException;
+    }
+
+    // A sequence function that returns a transducer when it is called
+    // without the sequence, e.g., (map f).
+    private abstract static class Function12 extends MalFunction {
+        @Override
+        public MalType apply(MalList args) throws MalException {
+            assertNArgs(args, 1, 2);
+            if (args.size() == 1) return apply1(args.get(0));
+            return apply2(args.get(0), args.get(1));
+        }
+
+        @Override
+        public abstract MalType apply1(MalType arg) throws MalException;
+
+        @Override
+        public abstract MalType apply2(MalType arg1, MalType arg2) throws MalException;
+    }
+
     static MalFunction malAdd = new MalFunction() {
             @Override
-            public MalInt apply(MalList args) throws MalException {
-                int result = 0;
+            public MalType apply(MalList args) throws MalException {
+                MalType result = MalInt.valueOf(0);
 
-                for(MalType i : args.getJValue()) {
-                    result += i.assertType(MalInt.class).getJValue();
+                for(MalType i : args) {
+                    result = numbers.add(result, i);
                 }
-                return new MalInt(result);
+                return result;
+            }
+
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                return numbers.add(arg1, arg2);
             }
         };
 
     static MalFunction malSubtract = new MalFunction() {
             @Override
-            public MalInt apply(MalList args) throws MalException {
-                int size = args.getJValue().size();
+            public MalType apply(MalList args) throws MalException {
+                int size = args.size();
 
-                if (size == 0) return new MalInt(0);
+                if (size == 0) return MalInt.valueOf(0);
 
-                int result = args.get(0).assertType(MalInt.class).getJValue();
-                if (size == 1) return new MalInt(-result);
+                MalType result = args.first();
+                if (size == 1) return numbers.negate(result);
 
-                for (MalType i : args.getJValue().subList(1,size)) {
-                    result -= i.assertType(MalInt.class).getJValue();
+                for (MalType i : args.rest()) {
+                    result = numbers.subtract(result, i);
                 }
-                return new MalInt(result);
+                return result;
+            }
+
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                return numbers.subtract(arg1, arg2);
             }
         };
 
     static MalFunction malMultiply = new MalFunction() {
             @Override
-            public MalInt apply(MalList args) throws MalException {
-                int result = 1;
+            public MalType apply(MalList args) throws MalException {
+                MalType result = MalInt.valueOf(1);
 
-                for(MalType i : args.getJValue()) {
-                    result *= i.assertType(MalInt.class).getJValue();
+                for(MalType i : args) {
+                    result = numbers.multiply(result, i);
                 }
-                return new MalInt(result);
+                return result;
+            }
+
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                return numbers.multiply(arg1, arg2);
             }
         };
 
     static MalFunction malDivide = new MalFunction() {
             @Override
-            public MalInt apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
+            public MalType apply(MalList args) throws MalException {
+                assertMinArgs(args, 1);
 
-                int result = args.get(0).assertType(MalInt.class).getJValue();
+                MalType result = args.first();
                 int size = args.size();
-                if (size == 1) return new MalInt(1/result); // These are integers, so this will always return 0.
+                if (size == 1) return numbers.divide(MalInt.valueOf(1), result);
 
-                for (MalType i : args.getJValue().subList(1,size)) {
-                    result /= i.assertType(MalInt.class).getJValue();
+                for (MalType i : args.rest()) {
+                    result = numbers.divide(result, i);
                 }
-                return new MalInt(result);
+                return result;
+            }
+
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                return numbers.divide(arg1, arg2);
             }
         };
 
@@ -149,46 +217,52 @@ public class core {
             }
         };
 
-    static MalFunction malListP = new MalFunction() {
+    static MalFunction malListP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                if (args.get(0) instanceof MalList) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalList) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malEmptyP = new MalFunction() {
+    static MalFunction malEmptyP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                int size = args.get(0).assertType(MalSequence.class).size();
-
-                if (size == 0) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg.assertType(MalSequence.class).isEmpty()) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malCount = new MalFunction() {
+    static MalFunction malCount = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                if (args.get(0) == types.Nil) return new MalInt(0);
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg == types.Nil) return MalInt.valueOf(0);
+                if (arg instanceof MalLazySeq) {
+                    // Hand the sequence over, so that this frame doesn't
+                    // keep its head while it's counted.
+                    MalType[] holder = { arg };
+                    arg = null;
+                    return MalInt.valueOf(MalLazySeq.count(holder));
+                }
 
-                int size = args.get(0).assertType(MalSequence.class).size();
+                int size = arg.assertType(MalSequence.class).size();
 
-                return new MalInt(size);
+                return MalInt.valueOf(size);
             }
         };
 
-    static MalFunction malEqual = new MalFunction() {
+    static MalFunction malEqual = new Function2() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 2);
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                if (arg1.equals(arg2)) return types.True;
+                else return types.False;
+            }
+        };
 
-                if (args.get(0).equals(args.get(1))) return types.True;
+    static MalFunction malIdenticalP = new Function2() {
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                if (arg1 == arg2) return types.True;
                 else return types.False;
             }
         };
@@ -196,65 +270,81 @@ public class core {
     static MalFunction malLessThan = new MalFunction() {
             @Override
             public MalType apply(MalList args) throws MalException {
-                int size = args.size();
-                MalInt arg1 = args.get(0).assertType(MalInt.class);
-
-                for (int i = 1; i < size; i++) {
-                    MalInt arg2 = args.get(i).assertType(MalInt.class);
+                assertMinArgs(args, 1);
+                MalType arg1 = args.first();
 
-                    if (!arg1.isLessThan(arg2)) return types.False;
+                for (MalType arg2 : args.rest()) {
+                    if (!(numbers.compare(arg1, arg2) < 0)) return types.False;
                     arg1 = arg2;
                 }
                 return types.True;
             }
+
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                if (numbers.compare(arg1, arg2) < 0) return types.True;
+                else return types.False;
+            }
         };
 
     static MalFunction malLessThanOrEqual = new MalFunction() {
             @Override
             public MalType apply(MalList args) throws MalException {
-                int size = args.size();
-                MalInt arg1 = args.get(0).assertType(MalInt.class);
+                assertMinArgs(args, 1);
+                MalType arg1 = args.first();
 
-                for (int i = 1; i < size; i++) {
-                    MalInt arg2 = args.get(i).assertType(MalInt.class);
-
-                    if (!arg1.isLessThanOrEqual(arg2)) return types.False;
+                for (MalType arg2 : args.rest()) {
+                    if (!(numbers.compare(arg1, arg2) <= 0)) return types.False;
                     arg1 = arg2;
                 }
                 return types.True;
             }
+
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                if (numbers.compare(arg1, arg2) <= 0) return types.True;
+                else return types.False;
+            }
         };
 
     static MalFunction malGreaterThan = new MalFunction() {
             @Override
             public MalType apply(MalList args) throws MalException {
-                int size = args.size();
-                MalInt arg1 = args.get(0).assertType(MalInt.class);
-
-                for (int i = 1; i < size; i++) {
-                    MalInt arg2 = args.get(i).assertType(MalInt.class);
+                assertMinArgs(args, 1);
+                MalType arg1 = args.first();
 
-                    if (!arg1.isGreaterThan(arg2)) return types.False;
+                for (MalType arg2 : args.rest()) {
+                    if (!(numbers.compare(arg1, arg2) > 0)) return types.False;
                     arg1 = arg2;
                 }
                 return types.True;
             }
+
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                if (numbers.compare(arg1, arg2) > 0) return types.True;
+                else return types.False;
+            }
         };
 
     static MalFunction malGreaterThanOrEqual = new MalFunction() {
             @Override
             public MalType apply(MalList args) throws MalException {
-                int size = args.size();
-                MalInt arg1 = args.get(0).assertType(MalInt.class);
+                assertMinArgs(args, 1);
+                MalType arg1 = args.first();
 
-                for (int i = 1; i < size; i++) {
-                    MalInt arg2 = args.get(i).assertType(MalInt.class);
-
-                    if (!arg1.isGreaterThanOrEqual(arg2)) return types.False;
+                for (MalType arg2 : args.rest()) {
+                    if (!(numbers.compare(arg1, arg2) >= 0)) return types.False;
                     arg1 = arg2;
                 }
                 return types.True;
             }
+
+            @Override
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                if (numbers.compare(arg1, arg2) >= 0) return types.True;
+                else return types.False;
+            }
         };
 
     // Strings functions.
@@ -308,20 +398,18 @@ public class core {
             }
         };
 
-    static MalFunction malReadString = new MalFunction() {
+    static MalFunction malReadString = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                MalString line = args.get(0).assertType(MalString.class);
+            public MalType apply1(MalType arg) throws MalException {
+                MalString line = arg.assertType(MalString.class);
                 return reader.read_str(line.getJValue());
             }
         };
 
-    static MalFunction malSlurp = new MalFunction() {
+    static MalFunction malSlurp = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                MalString pathname = args.get(0).assertType(MalString.class);
+            public MalType apply1(MalType arg) throws MalException {
+                MalString pathname = arg.assertType(MalString.class);
 
                 try {
                     String fileContents = new String(Files.readAllBytes(Paths.get(pathname.getJValue())), StandardCharsets.UTF_8);
@@ -332,40 +420,37 @@ public class core {
             }
         };
 
-    static MalFunction malAtom = new MalFunction() {
+    static MalFunction malAtom = new Function1() {
           @Override
-          public MalAtom apply(MalList args) throws MalException {
-              assertNArgs(args, 1);
-              return new MalAtom(args.get(0));
+          public MalAtom apply1(MalType arg) throws MalException {
+              return new MalAtom(arg);
           }
         };
 
-    static MalFunction malAtomP = new MalFunction() {
+    static MalFunction malAtomP = new Function1() {
           @Override
-          public MalType apply(MalList args) throws MalException {
-              assertNArgs(args,1);
-              if (args.get(0) instanceof MalAtom)
+          public MalType apply1(MalType arg) throws MalException {
+              if (arg instanceof MalAtom)
                   return types.True;
               else return types.False;
           }
         };
 
-    static MalFunction malDeref = new MalFunction() {
+    static MalFunction malDeref = new Function1() {
           @Override
-          public MalType apply(MalList args) throws MalException {
-              assertNArgs(args, 1);
-              args.get(0).assertType(MalAtom.class);
+          public MalType apply1(MalType arg) throws MalException {
+              if (arg instanceof MalReduced) return ((MalReduced)arg).getJValue();
+              arg.assertType(MalAtom.class);
 
-              return (MalType)args.get(0).getJValue();
+              return (MalType)arg.getJValue();
           }
         };
 
-    static MalFunction malReset = new MalFunction() {
+    static MalFunction malReset = new Function2() {
           @Override
-          public MalType apply(MalList args) throws MalException {
-              assertNArgs(args, 2);
-              MalAtom atom = args.get(0).assertType(MalAtom.class);
-              MalType val = args.get(1).assertType(MalType.class);
+          public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+              MalAtom atom = arg1.assertType(MalAtom.class);
+              MalType val = arg2.assertType(MalType.class);
 
               atom.setjValue(val);
               return val;
@@ -378,52 +463,96 @@ public class core {
               assertMinArgs(args, 2);
               MalAtom atom = args.get(0).assertType(MalAtom.class);
               MalFunction fn = args.get(1).assertType(MalFunction.class);
-              List<MalType> fnArgs = args.getJValue().subList(2,args.size());
-              fnArgs.add(0, atom.getJValue());
+              MalType[] fnArgs = new MalType[args.size()-1];
+              fnArgs[0] = atom.getJValue();
+              for (int i = 2; i < args.size(); i++) {
+                  fnArgs[i-1] = args.get(i);
+              }
 
-              MalType result = fn.apply(new MalList(fnArgs));
+              MalType result = fn.applyN(fnArgs);
+              atom.setjValue(result);
+              return result;
+          }
+
+          @Override
+          public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+              MalAtom atom = arg1.assertType(MalAtom.class);
+              MalFunction fn = arg2.assertType(MalFunction.class);
+
+              MalType result = fn.apply1(atom.getJValue());
               atom.setjValue(result);
               return result;
           }
         };
 
-    static MalFunction malCons = new MalFunction() {
+    static MalFunction malCons = new Function2() {
             @Override
-            public MalList apply(MalList args) throws MalException {
-                assertNArgs(args, 2);
+            public MalSequence apply2(MalType arg1, MalType arg2) throws MalException {
+                MalType firstArg = arg1;
 
-                MalType firstArg = args.get(0);
+                MalSequence secondArg = arg2.assertType(MalSequence.class);
 
-                MalSequence secondArg = args.get(1).assertType(MalSequence.class);
+                // A list becomes the tail of the new one as it is, and so
+                // does a lazy sequence, without being realized.
+                if (secondArg instanceof MalList) return new MalList(firstArg, (MalList)secondArg);
+                if (secondArg instanceof MalLazySeq) return new MalLazySeq(firstArg, secondArg);
 
-                List<MalType> oldList = secondArg.getJValue();
-
-                LinkedList<MalType> newList = new LinkedList<>();
-                newList.add(firstArg);
-                newList.addAll(oldList);
-                return new MalList(newList);
+                return new MalList(firstArg, new MalList(secondArg.getJValue()));
             }
         };
 
     static MalFunction malConcat = new MalFunction() {
             @Override
-            public MalList apply(MalList args) throws MalException {
-                LinkedList<MalType> newList = new LinkedList<>();
-
-                for (MalType arg : args.getJValue()) {
-                    MalSequence argList = arg.assertType(MalSequence.class);
+            public MalSequence apply(MalList args) throws MalException {
+                ArrayList<MalType> newList = new ArrayList<>();
+
+                for (MalList rest = args; !rest.isEmpty(); rest = rest.rest()) {
+                    MalSequence argList = rest.first().assertType(MalSequence.class);
+                    // Once a lazy sequence comes up, the rest is concatenated
+                    // lazily as well.
+                    if (argList instanceof MalLazySeq) {
+                        MalSequence tail = lazyConcat(argList, rest.rest());
+                        for (int i = newList.size() - 1; i >= 0; i--) {
+                            tail = new MalLazySeq(newList.get(i), tail);
+                        }
+                        return tail;
+                    }
                     newList.addAll(argList.getJValue());
                 }
                 return new MalList(newList);
             }
         };
 
-    static MalFunction malNth = new MalFunction() {
+    // The elements of seq followed by those of the sequences in more.
+    private static MalLazySeq lazyConcat(MalSequence seq, MalList more) {
+        return new MalLazySeq(() -> {
+                MalSequence s = seq;
+                MalList m = more;
+                while (s.isEmpty()) {
+                    if (m.isEmpty()) return types.Nil;
+                    s = m.first().assertType(MalSequence.class);
+                    m = m.rest();
+                }
+                return new MalLazySeq(s.first(), lazyConcat(s.rest(), m));
+            });
+    }
+
+    static MalFunction malNth = new Function2() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 2);
-                MalSequence seq = args.get(0).assertType(MalSequence.class);
-                int n = args.get(1).assertType(MalInt.class).getJValue();
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                arg1.assertType(MalSequence.class);
+                int n = numbers.intValue(arg2);
+
+                if (arg1 instanceof MalLazySeq) {
+                    // Hand the sequence over, as count does.
+                    MalType[] holder = { arg1 };
+                    arg1 = null;
+                    MalSequence rest = MalLazySeq.drop(holder, n);
+                    if (n < 0 || rest.isEmpty()) throw new MalException("Index out of bounds: " + n + ".");
+                    return rest.first();
+                }
+
+                MalSequence seq = (MalSequence)arg1;
 
                 if (n >= seq.size()) throw new MalException("Index out of bounds: " + n + " >= " + seq.size() + ".");
 
@@ -431,42 +560,37 @@ public class core {
             }
         };
 
-    static MalFunction malFirst = new MalFunction() {
+    static MalFunction malFirst = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                MalType firstArg = args.get(0);
+            public MalType apply1(MalType arg) throws MalException {
+                MalType firstArg = arg;
                 if (firstArg == types.Nil) return firstArg;
 
                 MalSequence seq = firstArg.assertType(MalSequence.class);
-                if (seq.size() == 0) return types.Nil;
+                if (seq.isEmpty()) return types.Nil;
 
-                return seq.get(0);
+                return seq.first();
             }
         };
 
-    static MalFunction malRest = new MalFunction() {
+    static MalFunction malRest = new Function1() {
             @Override
-            public MalList apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                MalType firstArg = args.get(0);
+            public MalSequence apply1(MalType arg) throws MalException {
+                MalType firstArg = arg;
                 if (firstArg == types.Nil) return new MalList();
 
                 MalSequence seq = firstArg.assertType(MalSequence.class);
+                if (!(seq instanceof MalVector)) return seq.rest();
 
                 if (seq.size() < 2) return new MalList();
                 return seq.subList(1,seq.size());
             }
         };
 
-    static MalFunction malThrow = new MalFunction() {
+    static MalFunction malThrow = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                throw new MalException(args.get(0));
+            public MalType apply1(MalType arg) throws MalException {
+                throw new MalException(arg);
             }
         };
 
@@ -481,97 +605,350 @@ public class core {
 
               if (size > 1) {
                   MalSequence lastArg = args.get(size-1).assertType(MalSequence.class);
-                  argList = args.subList(1,size-1);
-                  argList.getJValue().addAll(lastArg.getJValue());
+                  if (lastArg instanceof MalList) argList = (MalList)lastArg;
+                  else if (lastArg instanceof MalLazySeq) argList = ((MalLazySeq)lastArg).toList();
+                  else argList = new MalList(lastArg.getJValue());
+
+                  // Put the other arguments in front of the last one.
+                  MalType[] leading = new MalType[size-2];
+                  int i = 0;
+                  for (MalType arg : args.drop(1)) {
+                      if (i == leading.length) break;
+                      leading[i++] = arg;
+                  }
+                  for (i = leading.length - 1; i >= 0; i--) {
+                      argList = argList.cons(leading[i]);
+                  }
               }
 
               return fn.apply(argList);
           }
         };
 
-    static MalFunction malMap = new MalFunction() {
+    static MalFunction malMap = new Function12() {
+          @Override
+          public MalType apply1(MalType arg) throws MalException {
+              return transducers.map(arg.assertType(MalFunction.class));
+          }
+
+          @Override
+          public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+              MalFunction fn = arg1.assertType(MalFunction.class);
+              MalSequence seq = arg2.assertType(MalSequence.class);
+
+              // A lazy sequence may be infinite, so it is mapped lazily.
+              // A list or a vector is mapped right away, so that an error
+              // surfaces where map is called.
+              if (seq instanceof MalLazySeq) return lazyMap(fn, seq);
+
+              ArrayList<MalType> result = new ArrayList<>(seq.size());
+
+              for(MalType elem : seq) {
+                  result.add(fn.apply1(elem));
+              }
+              return new MalList(result);
+          }
+        };
+
+    // The results of fn on the elements of seq, computed as they are needed.
+    private static MalLazySeq lazyMap(MalFunction fn, MalSequence seq) {
+        return new MalLazySeq(() -> {
+                if (seq.isEmpty()) return types.Nil;
+                return new MalLazySeq(fn.apply1(seq.first()), lazyMap(fn, seq.rest()));
+            });
+    }
+
+    // The elements of seq for which pred returns a true value. An element
+    // that fails the test is skipped by returning the filter of the rest
+    // unrealized, which MalLazySeq follows in a loop, rather than by looping
+    // here, where the thunk would keep the skipped elements in memory.
+    private static MalLazySeq lazyFilter(MalFunction pred, MalSequence seq) {
+        return new MalLazySeq(() -> {
+                if (seq.isEmpty()) return types.Nil;
+                MalType item = seq.first();
+                MalType test = pred.apply1(item);
+                if (test != types.Nil && test != types.False) return new MalLazySeq(item, lazyFilter(pred, seq.rest()));
+                return lazyFilter(pred, seq.rest());
+            });
+    }
+
+    // Skipping elements works like in lazyFilter.
+    private static MalLazySeq lazyDrop(int n, MalSequence seq) {
+        return new MalLazySeq(() -> {
+                if (n <= 0) return seq;
+                if (seq.isEmpty()) return types.Nil;
+                return lazyDrop(n - 1, seq.rest());
+            });
+    }
+
+    private static MalLazySeq lazyTake(int n, MalSequence seq) {
+        return new MalLazySeq(() -> {
+                if (n <= 0 || seq.isEmpty()) return types.Nil;
+                return new MalLazySeq(seq.first(), lazyTake(n - 1, seq.rest()));
+            });
+    }
+
+    private static MalLazySeq lazyRange(MalType start, MalType end, MalType step) {
+        return new MalLazySeq(() -> {
+                if (end != null) {
+                    int direction = numbers.compare(step, MalInt.valueOf(0));
+                    int order = numbers.compare(start, end);
+                    if (direction >= 0 ? order >= 0 : order <= 0) return types.Nil;
+                }
+                return new MalLazySeq(start, lazyRange(numbers.add(start, step), end, step));
+            });
+    }
+
+    private static MalLazySeq lazyIterate(MalFunction fn, MalType x) {
+        return new MalLazySeq(x, new MalLazySeq(() -> lazyIterate(fn, fn.apply1(x))));
+    }
+
+    // A vector is turned into a list before it is consumed lazily, since
+    // the rest of a vector is a copy.
+    private static MalSequence lazySource(MalType arg) throws MalException {
+        if (arg == types.Nil) return new MalList();
+        MalSequence seq = arg.assertType(MalSequence.class);
+        if (seq instanceof MalVector) return new MalList(seq.getJValue());
+        return seq;
+    }
+
+    static MalFunction malFilter = new Function12() {
+          @Override
+          public MalType apply1(MalType arg) throws MalException {
+              return transducers.filter(arg.assertType(MalFunction.class));
+          }
+
+          @Override
+          public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+              return lazyFilter(arg1.assertType(MalFunction.class), lazySource(arg2));
+          }
+        };
+
+    static MalFunction malTake = new Function12() {
+          @Override
+          public MalType apply1(MalType arg) throws MalException {
+              return transducers.take(numbers.intValue(arg));
+          }
+
+          @Override
+          public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+              return lazyTake(numbers.intValue(arg1), lazySource(arg2));
+          }
+        };
+
+    static MalFunction malDrop = new Function12() {
+          @Override
+          public MalType apply1(MalType arg) throws MalException {
+              return transducers.drop(numbers.intValue(arg));
+          }
+
+          @Override
+          public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+              return lazyDrop(numbers.intValue(arg1), lazySource(arg2));
+          }
+        };
+
+    static MalFunction malReduce = new MalFunction() {
           @Override
           public MalType apply(MalList args) throws MalException {
-              assertNArgs(args, 2);
-              MalFunction fn = args.get(0).assertType(MalFunction.class);
-              MalSequence seq = args.get(1).assertType(MalSequence.class);
+              assertNArgs(args, 2, 3);
+              if (args.size() == 3) return apply3(args.get(0), args.get(1), args.get(2));
+              return apply2(args.get(0), args.get(1));
+          }
+
+          // The collection is handed over in an array, as for count, so
+          // that these frames don't keep the head of a lazy sequence while
+          // it is reduced.
+          @Override
+          public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+              MalType[] coll = { arg2 };
+              arg2 = null;
+              return transducers.reduce(arg1.assertType(MalFunction.class), coll);
+          }
+
+          @Override
+          public MalType apply3(MalType arg1, MalType arg2, MalType arg3) throws MalException {
+              MalType[] coll = { arg3 };
+              arg3 = null;
+              return transducers.reduce(arg1.assertType(MalFunction.class), arg2, coll);
+          }
+        };
+
+    static MalFunction malTransduce = new MalFunction() {
+          @Override
+          public MalType apply(MalList args) throws MalException {
+              assertNArgs(args, 3, 4);
+              if (args.size() == 4) return applyN(new MalType[] { args.get(0), args.get(1), args.get(2), args.get(3) });
+              return apply3(args.get(0), args.get(1), args.get(2));
+          }
 
-              MalList result = new MalList();
+          // Without an initial value, it is the result of calling f without
+          // arguments.
+          @Override
+          public MalType apply3(MalType arg1, MalType arg2, MalType arg3) throws MalException {
+              MalType[] coll = { arg3 };
+              arg3 = null;
+              MalFunction fn = arg2.assertType(MalFunction.class);
+              return transducers.transduce(arg1.assertType(MalFunction.class), fn, fn.apply0(), coll);
+          }
 
-              for(MalType elem : seq.getJValue()) {
-                  // This is silly. We nee to wrap each argument in a MalList,
-                  // because that's what MalFunction.apply() expects. I'm not
-                  // sure variadic argument lists would be a solution, however,
-                  // because that would require that we unwrap the argument list
-                  // in many locations.
-                  result.add(fn.apply(new MalList(elem)));
+          // The collection is handed over like for reduce.
+          @Override
+          public MalType applyN(MalType[] args) throws MalException {
+              if (args.length != 4) return apply(new MalList(args, 0, args.length));
+              MalType[] coll = { args[3] };
+              args[3] = null;
+              return transducers.transduce(args[0].assertType(MalFunction.class), args[1].assertType(MalFunction.class), args[2], coll);
+          }
+        };
+
+    static MalFunction malReduced = new Function1() {
+          @Override
+          public MalType apply1(MalType arg) throws MalException {
+              return new MalReduced(arg);
+          }
+        };
+
+    static MalFunction malReducedP = new Function1() {
+          @Override
+          public MalType apply1(MalType arg) throws MalException {
+              if (arg instanceof MalReduced) return types.True;
+              else return types.False;
+          }
+        };
+
+    // (comp f g h) calls h with the arguments it is called with, then g and
+    // f with the result. Composed transducers therefore transform a
+    // reducing function from right to left, and their steps see an input
+    // from left to right.
+    static MalFunction malComp = new MalFunction() {
+          @Override
+          public MalType apply(MalList args) throws MalException {
+              MalFunction[] fns = new MalFunction[args.size()];
+              int i = 0;
+              for (MalType arg : args) {
+                  fns[i++] = arg.assertType(MalFunction.class);
               }
-              return result;
+
+              return new MalFunction() {
+                  @Override
+                  public MalType apply(MalList args) throws MalException {
+                      if (fns.length == 0) {
+                          assertNArgs(args, 1);
+                          return args.get(0);
+                      }
+                      MalType result = fns[fns.length - 1].apply(args);
+                      for (int i = fns.length - 2; i >= 0; i--) {
+                          result = fns[i].apply1(result);
+                      }
+                      return result;
+                  }
+
+                  @Override
+                  public MalType apply1(MalType arg) throws MalException {
+                      MalType result = arg;
+                      for (int i = fns.length - 1; i >= 0; i--) {
+                          result = fns[i].apply1(result);
+                      }
+                      return result;
+                  }
+              };
           }
         };
 
-    static MalFunction malNilP = new MalFunction() {
+    static MalFunction malRange = new MalFunction() {
+          @Override
+          public MalType apply(MalList args) throws MalException {
+              assertNArgs(args, 0, 3);
+              MalType one = MalInt.valueOf(1);
+
+              switch (args.size()) {
+                  case 0: return lazyRange(MalInt.valueOf(0), null, one);
+                  case 1: return lazyRange(MalInt.valueOf(0), args.get(0).assertType(MalNumber.class), one);
+                  case 2: return lazyRange(args.get(0).assertType(MalNumber.class), args.get(1).assertType(MalNumber.class), one);
+                  default: return lazyRange(args.get(0).assertType(MalNumber.class), args.get(1).assertType(MalNumber.class), args.get(2).assertType(MalNumber.class));
+              }
+          }
+        };
+
+    static MalFunction malIterate = new Function2() {
+          @Override
+          public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+              return lazyIterate(arg1.assertType(MalFunction.class), arg2);
+          }
+        };
+
+    static MalFunction malRepeat = new MalFunction() {
+          @Override
+          public MalType apply(MalList args) throws MalException {
+              assertNArgs(args, 1, 2);
+              if (args.size() == 1) return MalLazySeq.repeat(args.get(0));
+              return lazyTake(numbers.intValue(args.get(0)), MalLazySeq.repeat(args.get(1)));
+          }
+        };
+
+    static MalFunction malLazySeq = new Function1() {
+          @Override
+          public MalType apply1(MalType arg) throws MalException {
+              MalFunction fn = arg.assertType(MalFunction.class);
+              return new MalLazySeq(() -> fn.apply(new MalList()));
+          }
+        };
+
+    static MalFunction malNilP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                if (args.get(0) == types.Nil) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg == types.Nil) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malTrueP = new MalFunction() {
+    static MalFunction malTrueP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                if (args.get(0) == types.True) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg == types.True) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malFalseP = new MalFunction() {
+    static MalFunction malFalseP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                if (args.get(0) == types.False) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg == types.False) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malSymbol = new MalFunction() {
+    static MalFunction malSymbol = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                MalString name = args.get(0).assertType(MalString.class);
-                return new MalSymbol(name);
+            public MalType apply1(MalType arg) throws MalException {
+                MalString name = arg.assertType(MalString.class);
+                return MalSymbol.intern(name.getJValue());
             }
         };
 
-    static MalFunction malSymbolP = new MalFunction() {
+    static MalFunction malSymbolP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                if (args.get(0) instanceof MalSymbol) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalSymbol) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malKeyword = new MalFunction() {
+    static MalFunction malKeyword = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                if (args.get(0) instanceof MalKeyword) return args.get(0);
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalKeyword) return arg;
 
-                MalString name = args.get(0).assertType(MalString.class);
-                return new MalKeyword(name.prepend(":"));
+                MalString name = arg.assertType(MalString.class);
+                return MalKeyword.intern(":" + name.getJValue());
             }
         };
 
-    static MalFunction malKeywordP = new MalFunction() {
+    static MalFunction malKeywordP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                if (args.get(0) instanceof MalKeyword) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalKeyword) return types.True;
                 else return types.False;
             }
         };
@@ -583,11 +960,10 @@ public class core {
             }
         };
 
-    static MalFunction malVectorP = new MalFunction() {
+    static MalFunction malVectorP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                if (args.get(0) instanceof MalVector) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalVector) return types.True;
                 else return types.False;
             }
         };
@@ -606,17 +982,16 @@ public class core {
                         throw new MalException("Wrong hash key type (" + key.getClass() + ").");
                     MalType value = args.get(++i);
 
-                    result.put(key, value);
+                    result = result.assoc(key, value);
                 }
                 return result;
             }
         };
 
-    static MalFunction malMapP = new MalFunction() {
+    static MalFunction malMapP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                if (args.get(0) instanceof MalHash) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalHash) return types.True;
                 else return types.False;
             }
         };
@@ -628,7 +1003,19 @@ public class core {
                 int size = args.size();
                 if (((size-1) % 2) != 0) throw new MalException("Odd number of elements in hash map.");
 
-                MalHash newMap = args.get(0).assertType(MalHash.class).copy();
+                if (args.get(0) instanceof MalVector) {
+                    MalVector newVector = (MalVector)args.get(0);
+
+                    for (MalList pairs = args.rest(); pairs.size() > 0; pairs = pairs.drop(2)) {
+                        int index = numbers.intValue(pairs.first());
+                        if (index < 0 || index > newVector.size()) throw new MalException("Index out of bounds: " + index + " > " + newVector.size() + ".");
+
+                        newVector = newVector.assoc(index, pairs.rest().first());
+                    }
+                    return newVector;
+                }
+
+                MalHash newMap = args.get(0).assertType(MalHash.class);
 
                 for (int i = 1; i < size; i++) {
                     MalType key = args.get(i);
@@ -636,7 +1023,7 @@ public class core {
                         throw new MalException("Wrong hash key type (" + key.getClass() + ").");
                     MalType value = args.get(++i);
 
-                    newMap.put(key, value);
+                    newMap = newMap.assoc(key, value);
                 }
                 return newMap;
             }
@@ -645,26 +1032,25 @@ public class core {
     static MalFunction malDissoc = new MalFunction() {
             @Override
             public MalType apply(MalList args) throws MalException {
-                MalHash newMap = args.get(0).assertType(MalHash.class).copy();
+                MalHash newMap = args.get(0).assertType(MalHash.class);
 
                 for (int i = 1; i < args.size(); i++) {
                     MalType key = args.get(i);
                     if (!(key instanceof MalString || key instanceof MalKeyword))
                         throw new MalException("Wrong hash key type (" + key.getClass() + ").");
 
-                    newMap.delete(key);
+                    newMap = newMap.dissoc(key);
                 }
                 return newMap;
             }
         };
 
-    static MalFunction malGet = new MalFunction() {
+    static MalFunction malGet = new Function2() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 2);
-                if (args.get(0) == types.Nil) return types.Nil;
-                MalHash map = args.get(0).assertType(MalHash.class);
-                MalType key = args.get(1);
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                if (arg1 == types.Nil) return types.Nil;
+                MalHash map = arg1.assertType(MalHash.class);
+                MalType key = arg2;
                 if (!(key instanceof MalString || key instanceof MalKeyword))
                     throw new MalException("Wrong hash key type (" + key.getClass() + ").");
 
@@ -672,61 +1058,55 @@ public class core {
             }
         };
 
-    static MalFunction malContainsP = new MalFunction() {
+    static MalFunction malContainsP = new Function2() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 2);
-                MalHash map = args.get(0).assertType(MalHash.class);
-                MalType key = args.get(1);
+            public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+                MalHash map = arg1.assertType(MalHash.class);
+                MalType key = arg2;
                 if (!(key instanceof MalString || key instanceof MalKeyword))
                     throw new MalException("Wrong hash key type (" + key.getClass() + ").");
 
-                if (map.getJValue().containsKey(key)) return types.True;
+                if (map.containsKey(key)) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malKeys = new MalFunction() {
+    static MalFunction malKeys = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                MalHash map = args.get(0).assertType(MalHash.class);
+            public MalType apply1(MalType arg) throws MalException {
+                MalHash map = arg.assertType(MalHash.class);
                 return map.keys();
             }
         };
 
-    static MalFunction malVals = new MalFunction() {
+    static MalFunction malVals = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                MalHash map = args.get(0).assertType(MalHash.class);
+            public MalType apply1(MalType arg) throws MalException {
+                MalHash map = arg.assertType(MalHash.class);
 
                 return map.values();
             }
         };
 
-    static MalFunction malSequentialP = new MalFunction() {
+    static MalFunction malSequentialP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                if (args.get(0) instanceof MalSequence) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalSequence) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malType = new MalFunction() {
+    static MalFunction malType = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                return new MalString(args.get(0).type);
+            public MalType apply1(MalType arg) throws MalException {
+                return new MalString(arg.getType());
             }
         };
 
-    static MalFunction malReadLine = new MalFunction() {
+    static MalFunction malReadLine = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-                String prompt = args.get(0).assertType(MalString.class).getJValue();
+            public MalType apply1(MalType arg) throws MalException {
+                String prompt = arg.assertType(MalString.class).getJValue();
                 Console console = System.console();
                 String input = console.readLine(prompt);
 
@@ -735,23 +1115,19 @@ public class core {
             }
         };
 
-    static MalFunction malMeta = new MalFunction() {
+    static MalFunction malMeta = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                MalFunction fn = args.get(0).assertType(MalFunction.class);
+            public MalType apply1(MalType arg) throws MalException {
+                MalFunction fn = arg.assertType(MalFunction.class);
                 return fn.getMeta();
             }
         };
 
-    static MalFunction malWithMeta = new MalFunction() {
+    static MalFunction malWithMeta = new Function2() {
             @Override
-            public MalFunction apply(MalList args) throws MalException {
-                assertNArgs(args, 2);
-
-                MalFunction fn = args.get(0).assertType(MalFunction.class);
-                MalType data = args.get(1);
+            public MalFunction apply2(MalType arg1, MalType arg2) throws MalException {
+                MalFunction fn = arg1.assertType(MalFunction.class);
+                MalType data = arg2;
 
                 MalFunction newFn = fn.clone();
                 newFn.setMeta(data);
@@ -762,101 +1138,136 @@ public class core {
 
     static MalFunction malTimeMs = new MalFunction() {
             @Override
-            public MalString apply(MalList args) throws MalException {
+            public MalInt apply(MalList args) throws MalException {
+                assertNArgs(args, 0);
+
+                return MalInt.valueOf(System.currentTimeMillis());
+            }
+        };
+
+    static MalFunction malProfileStart = new MalFunction() {
+            @Override
+            public MalType apply(MalList args) throws MalException {
+                assertNArgs(args, 0);
+                if (machine.enabled || vm.enabled) throw new MalException("The profiler requires mal.engine=tree.");
+
+                profiler.start();
+                return types.Nil;
+            }
+        };
+
+    static MalFunction malProfileStop = new MalFunction() {
+            @Override
+            public MalType apply(MalList args) throws MalException {
+                assertNArgs(args, 0);
+
+                profiler.stop();
+                return types.Nil;
+            }
+        };
+
+    static MalFunction malProfileReport = new MalFunction() {
+            @Override
+            public MalType apply(MalList args) throws MalException {
                 assertNArgs(args, 0);
 
-                return new MalString(Long.toString(System.currentTimeMillis()));
+                System.out.print(profiler.report());
+                return types.Nil;
+            }
+        };
+
+    static MalFunction malRuntimeStats = new MalFunction() {
+            @Override
+            public MalHash apply(MalList args) throws MalException {
+                assertNArgs(args, 0);
+
+                return metrics.snapshot();
             }
         };
 
     static MalFunction malConj = new MalFunction() {
             @Override
             public MalSequence apply(MalList args) throws MalException {
-                assertMinArgs(args, 2);
-                MalSequence collection = args.get(0).assertType(MalSequence.class);
+                // Called like a reducing function, to begin with an empty
+                // vector and to complete a result.
+                if (args.size() == 0) return new MalVector();
+                if (args.size() == 1) return args.get(0).assertType(MalSequence.class);
 
-                MalSequence result;
+                MalSequence collection = args.get(0).assertType(MalSequence.class);
 
                 if (collection instanceof MalList) {
-                    result = new MalList();
+                    MalList result = (MalList)collection;
 
-                    for (int i = args.size()-1; i > 0 ; i--) {
-                        result.add(args.get(i));
+                    for (MalType arg : args.rest()) {
+                        result = result.cons(arg);
                     }
+                    return result;
+                }
+                else if (collection instanceof MalLazySeq) {
+                    MalSequence result = collection;
 
-                    result.addAll(collection);
-
+                    for (MalType arg : args.rest()) {
+                        result = new MalLazySeq(arg, result);
+                    }
+                    return result;
                 }
                 else { // MalVector
-                    result = new MalVector();
+                    MalVector result = (MalVector)collection;
 
-                    result.addAll(collection);
-
-                    for (int i = 1; i < args.size() ; i++) {
-                        result.add(args.get(i));
+                    for (MalType arg : args.rest()) {
+                        result = result.conj(arg);
                     }
+                    return result;
                 }
-
-                return result;
             }
         };
 
-    static MalFunction malStringP = new MalFunction() {
+    static MalFunction malStringP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                if (args.get(0) instanceof MalString) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalString) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malNumberP = new MalFunction() {
+    static MalFunction malNumberP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                if (args.get(0) instanceof MalInt) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalNumber) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malFnP = new MalFunction() {
+    static MalFunction malFnP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                if (args.get(0) instanceof MalUserFunction)
-                    if (!((MalUserFunction)args.get(0)).isMacro()) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if (arg instanceof MalUserFunction)
+                    if (!((MalUserFunction)arg).isMacro()) return types.True;
                     else return types.False;
-                if (args.get(0) instanceof MalFunction) return types.True;
+                if (arg instanceof MalFunction) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malMacroP = new MalFunction() {
+    static MalFunction malMacroP = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                if ((args.get(0) instanceof MalUserFunction) && ((MalUserFunction)args.get(0)).isMacro()) return types.True;
+            public MalType apply1(MalType arg) throws MalException {
+                if ((arg instanceof MalUserFunction) && ((MalUserFunction)arg).isMacro()) return types.True;
                 else return types.False;
             }
         };
 
-    static MalFunction malSeq = new MalFunction() {
+    static MalFunction malSeq = new Function1() {
             @Override
-            public MalType apply(MalList args) throws MalException {
-                assertNArgs(args, 1);
-
-                MalType arg = args.get(0);
-
+            public MalType apply1(MalType arg) throws MalException {
                 if (arg == types.Nil) return types.Nil;
 
                 if (arg instanceof MalSequence) {
                     MalSequence seqArg = (MalSequence)arg;
 
-                    if (seqArg.length() == 0) return types.Nil;
+                    if (seqArg.isEmpty()) return types.Nil;
+                    else if (seqArg instanceof MalLazySeq) return seqArg;
+                    else if (seqArg instanceof MalList) return seqArg;
                     else return new MalList(seqArg.getJValue());
                 }
 
@@ -866,8 +1277,8 @@ public class core {
                         String str = ((MalString)arg).getJValue();
                         MalList result = new MalList();
 
-                        for (int i = 0; i < str.length(); i++) {
-                            result.add(new MalString(str.charAt(i)));
+                        for (int i = str.length() - 1; i >= 0; i--) {
+                            result = result.cons(new MalString(str.charAt(i)));
                         }
                         return result;
                     }
@@ -879,80 +1290,97 @@ public class core {
     static HashMap<MalSymbol,MalFunction> ns = new HashMap<>();
 
     static {
-        ns.put(new MalSymbol("list"),        malList);
-        ns.put(new MalSymbol("list?"),       malListP);
-        ns.put(new MalSymbol("empty?"),      malEmptyP);
-        ns.put(new MalSymbol("count"),       malCount);
-
-        ns.put(new MalSymbol("="),           malEqual);
-        ns.put(new MalSymbol("<"),           malLessThan);
-        ns.put(new MalSymbol("<="),          malLessThanOrEqual);
-        ns.put(new MalSymbol(">"),           malGreaterThan);
-        ns.put(new MalSymbol(">="),          malGreaterThanOrEqual);
-        ns.put(new MalSymbol("+"),           malAdd);
-        ns.put(new MalSymbol("-"),           malSubtract);
-        ns.put(new MalSymbol("*"),           malMultiply);
-        ns.put(new MalSymbol("/"),           malDivide);
-
-        ns.put(new MalSymbol("pr-str"),      malPrStr);
-        ns.put(new MalSymbol("str"),         malStr);
-        ns.put(new MalSymbol("prn"),         malPrn);
-        ns.put(new MalSymbol("println"),     malPrintln);
-
-        ns.put(new MalSymbol("read-string"), malReadString);
-        ns.put(new MalSymbol("slurp"),       malSlurp);
-
-        ns.put(new MalSymbol("atom"),        malAtom);
-        ns.put(new MalSymbol("atom?"),       malAtomP);
-        ns.put(new MalSymbol("deref"),       malDeref);
-        ns.put(new MalSymbol("reset!"),      malReset);
-        ns.put(new MalSymbol("swap!"),       malSwap);
-
-        ns.put(new MalSymbol("cons"),        malCons);
-        ns.put(new MalSymbol("concat"),      malConcat);
-        ns.put(new MalSymbol("nth"),         malNth);
-        ns.put(new MalSymbol("first"),       malFirst);
-        ns.put(new MalSymbol("rest"),        malRest);
-
-        ns.put(new MalSymbol("throw"),       malThrow);
-        ns.put(new MalSymbol("apply"),       malApply);
-
-        ns.put(new MalSymbol("map"),         malMap);
-        ns.put(new MalSymbol("nil?"),        malNilP);
-        ns.put(new MalSymbol("true?"),       malTrueP);
-        ns.put(new MalSymbol("false?"),      malFalseP);
-        ns.put(new MalSymbol("symbol"),      malSymbol);
-        ns.put(new MalSymbol("symbol?"),     malSymbolP);
-        ns.put(new MalSymbol("keyword"),     malKeyword);
-        ns.put(new MalSymbol("keyword?"),    malKeywordP);
-        ns.put(new MalSymbol("vector"),      malVector);
-        ns.put(new MalSymbol("vector?"),     malVectorP);
-        ns.put(new MalSymbol("hash-map"),    malHashMap);
-        ns.put(new MalSymbol("map?"),        malMapP);
-
-        ns.put(new MalSymbol("assoc"),       malAssoc);
-        ns.put(new MalSymbol("dissoc"),      malDissoc);
-        ns.put(new MalSymbol("get"),         malGet);
-        ns.put(new MalSymbol("contains?"),   malContainsP);
-        ns.put(new MalSymbol("keys"),        malKeys);
-        ns.put(new MalSymbol("vals"),        malVals);
-
-        ns.put(new MalSymbol("sequential?"), malSequentialP);
-
-        ns.put(new MalSymbol("readline"),    malReadLine);
-
-        ns.put(new MalSymbol("meta"),        malMeta);
-        ns.put(new MalSymbol("with-meta"),   malWithMeta);
-
-        ns.put(new MalSymbol("time-ms"),     malTimeMs);
-
-        ns.put(new MalSymbol("conj"),        malConj);
-        ns.put(new MalSymbol("string?"),     malStringP);
-        ns.put(new MalSymbol("number?"),     malNumberP);
-        ns.put(new MalSymbol("fn?"),         malFnP);
-        ns.put(new MalSymbol("macro?"),      malMacroP);
-        ns.put(new MalSymbol("seq"),         malSeq);
-
-        ns.put(new MalSymbol("type"),        malType);
+        ns.put(MalSymbol.intern("list"),        malList);
+        ns.put(MalSymbol.intern("list?"),       malListP);
+        ns.put(MalSymbol.intern("empty?"),      malEmptyP);
+        ns.put(MalSymbol.intern("count"),       malCount);
+
+        ns.put(MalSymbol.intern("="),           malEqual);
+        ns.put(MalSymbol.intern("identical?"),  malIdenticalP);
+        ns.put(MalSymbol.intern("<"),           malLessThan);
+        ns.put(MalSymbol.intern("<="),          malLessThanOrEqual);
+        ns.put(MalSymbol.intern(">"),           malGreaterThan);
+        ns.put(MalSymbol.intern(">="),          malGreaterThanOrEqual);
+        ns.put(MalSymbol.intern("+"),           malAdd);
+        ns.put(MalSymbol.intern("-"),           malSubtract);
+        ns.put(MalSymbol.intern("*"),           malMultiply);
+        ns.put(MalSymbol.intern("/"),           malDivide);
+
+        ns.put(MalSymbol.intern("pr-str"),      malPrStr);
+        ns.put(MalSymbol.intern("str"),         malStr);
+        ns.put(MalSymbol.intern("prn"),         malPrn);
+        ns.put(MalSymbol.intern("println"),     malPrintln);
+
+        ns.put(MalSymbol.intern("read-string"), malReadString);
+        ns.put(MalSymbol.intern("slurp"),       malSlurp);
+
+        ns.put(MalSymbol.intern("atom"),        malAtom);
+        ns.put(MalSymbol.intern("atom?"),       malAtomP);
+        ns.put(MalSymbol.intern("deref"),       malDeref);
+        ns.put(MalSymbol.intern("reset!"),      malReset);
+        ns.put(MalSymbol.intern("swap!"),       malSwap);
+
+        ns.put(MalSymbol.intern("cons"),        malCons);
+        ns.put(MalSymbol.intern("concat"),      malConcat);
+        ns.put(MalSymbol.intern("nth"),         malNth);
+        ns.put(MalSymbol.intern("first"),       malFirst);
+        ns.put(MalSymbol.intern("rest"),        malRest);
+
+        ns.put(MalSymbol.intern("throw"),       malThrow);
+        ns.put(MalSymbol.intern("apply"),       malApply);
+
+        ns.put(MalSymbol.intern("map"),         malMap);
+        ns.put(MalSymbol.intern("filter"),      malFilter);
+        ns.put(MalSymbol.intern("take"),        malTake);
+        ns.put(MalSymbol.intern("drop"),        malDrop);
+        ns.put(MalSymbol.intern("range"),       malRange);
+        ns.put(MalSymbol.intern("iterate"),     malIterate);
+        ns.put(MalSymbol.intern("repeat"),      malRepeat);
+        ns.put(MalSymbol.intern("lazy-seq*"),   malLazySeq);
+        ns.put(MalSymbol.intern("reduce"),      malReduce);
+        ns.put(MalSymbol.intern("transduce"),   malTransduce);
+        ns.put(MalSymbol.intern("reduced"),     malReduced);
+        ns.put(MalSymbol.intern("reduced?"),    malReducedP);
+        ns.put(MalSymbol.intern("comp"),        malComp);
+        ns.put(MalSymbol.intern("nil?"),        malNilP);
+        ns.put(MalSymbol.intern("true?"),       malTrueP);
+        ns.put(MalSymbol.intern("false?"),      malFalseP);
+        ns.put(MalSymbol.intern("symbol"),      malSymbol);
+        ns.put(MalSymbol.intern("symbol?"),     malSymbolP);
+        ns.put(MalSymbol.intern("keyword"),     malKeyword);
+        ns.put(MalSymbol.intern("keyword?"),    malKeywordP);
+        ns.put(MalSymbol.intern("vector"),      malVector);
+        ns.put(MalSymbol.intern("vector?"),     malVectorP);
+        ns.put(MalSymbol.intern("hash-map"),    malHashMap);
+        ns.put(MalSymbol.intern("map?"),        malMapP);
+
+        ns.put(MalSymbol.intern("assoc"),       malAssoc);
+        ns.put(MalSymbol.intern("dissoc"),      malDissoc);
+        ns.put(MalSymbol.intern("get"),         malGet);
+        ns.put(MalSymbol.intern("contains?"),   malContainsP);
+        ns.put(MalSymbol.intern("keys"),        malKeys);
+        ns.put(MalSymbol.intern("vals"),        malVals);
+
+        ns.put(MalSymbol.intern("sequential?"), malSequentialP);
+
+        ns.put(MalSymbol.intern("readline"),    malReadLine);
+
+        ns.put(MalSymbol.intern("meta"),        malMeta);
+        ns.put(MalSymbol.intern("with-meta"),   malWithMeta);
+
+        ns.put(MalSymbol.intern("time-ms"),     malTimeMs);
+        ns.put(MalSymbol.intern("profile-start"),  malProfileStart);
+        ns.put(MalSymbol.intern("profile-stop"),   malProfileStop);
+        ns.put(MalSymbol.intern("profile-report"), malProfileReport);
+        ns.put(MalSymbol.intern("runtime-stats"),  malRuntimeStats);
+
+        ns.put(MalSymbol.intern("conj"),        malConj);
+        ns.put(MalSymbol.intern("string?"),     malStringP);
+        ns.put(MalSymbol.intern("number?"),     malNumberP);
+        ns.put(MalSymbol.intern("fn?"),         malFnP);
+        ns.put(MalSymbol.intern("macro?"),      malMacroP);
+        ns.put(MalSymbol.intern("seq"),         malSeq);
+
+        ns.put(MalSymbol.intern("type"),        malType);
     }
 }
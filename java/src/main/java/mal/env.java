@@ -1,58 +1,99 @@
 package mal;
 
 import java.util.HashMap;
-import java.util.List;
 
-import mal.types.MalException;
-import mal.types.MalList;
 import mal.types.MalSymbol;
 import mal.types.MalType;
 
 public class env {
+    // There are two kinds of environments. The global environment stores its
+    // bindings in a hash map, because it grows at runtime. Function and let*
+    // environments are frames: fixed-size arrays of slots whose layout is
+    // determined when the code that creates them is analyzed, so that local
+    // variables can be accessed by position rather than by name. A frame only
+    // gets a hash map when def! adds a binding to it that the analyzer didn't
+    // know about.
     public static class Env {
+        private static final MalSymbol[] NO_NAMES = new MalSymbol[0];
+
+        // Incremented whenever a binding is added to or changed in a hash map,
+        // i.e., by every def! of a global. Code that caches the result of a
+        // lookup by name can use it to check whether the result is still valid.
+        static int version = 0;
+
         Env outer;
-        HashMap<MalSymbol,MalType> data = new HashMap<>();
+        HashMap<MalSymbol,MalType> data;
+        final MalSymbol[] names;
+        final MalType[] slots;
 
         Env(Env outer) {
             this.outer = outer;
+            this.data = new HashMap<>();
+            this.names = NO_NAMES;
+            this.slots = null;
         }
 
-        Env(Env outer, List<MalType> binds, List<MalType> exprs) throws MalException {
-            int nSyms = binds.size();
-            int nArgs = exprs.size();
+        Env(Env outer, MalSymbol[] names) {
+            this.outer = outer;
+            this.names = names;
+            this.slots = new MalType[names.length];
+        }
 
-            for (int i = 0; i<nSyms; i++) {
-                if (!(binds.get(i) instanceof MalSymbol)) throw new MalException("Cannot bind non-symbol: " + binds.get(i).toString());
+        // Return a new frame with the same bindings as this one, which may
+        // then be rebound without affecting the closures that refer to this
+        // one.
+        Env copy() {
+            Env env = new Env(outer, names);
+            System.arraycopy(slots, 0, env.slots, 0, slots.length);
+            if (data != null) env.data = new HashMap<>(data);
+            return env;
+        }
 
-                if (binds.get(i).getJValue().equals("&")) {
-                    if (nSyms == i+1) throw new MalException("Symbol required after `&'.");
-                    if (nSyms > i+2) throw new MalException("Multiple symbols after `&'.");
-                    this.set((MalSymbol)binds.get(i+1), new MalList(exprs.subList(i, exprs.size())));
-                    break;
+        public void set(MalSymbol symbol, MalType value) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] == symbol) {
+                    slots[i] = value;
+                    return;
                 }
-
-                if (nArgs <= i) throw new MalException("Wrong number of arguments: expected " + binds.size() + ", received " + nArgs + ".");
-                this.set((MalSymbol)binds.get(i), exprs.get(i));
             }
 
-            this.outer = outer;
+            if (data == null) data = new HashMap<>();
+            data.put(symbol, value);
+            version++;
         }
 
-        public void set(MalSymbol symbol, MalType value) {
-            data.put(symbol, value);
+        // Return the value bound to symbol in this environment only, or null.
+        // A slot that hasn't been assigned yet is not bound. Symbols are
+        // interned, so the names of the slots are compared by identity.
+        private MalType lookup(MalSymbol symbol) {
+            for (int i = 0; i < names.length; i++) {
+                if (names[i] == symbol) {
+                    if (slots[i] != null) return slots[i];
+                    break;
+                }
+            }
+
+            if (data == null) return null;
+            else return data.get(symbol);
         }
 
         public Env find(MalSymbol symbol) {
-            if (data.containsKey(symbol)) return this;
-            else if (outer == null) return null;
-            else return outer.find(symbol);
+            metrics.lookups++;
+            for (Env env = this; env != null; env = env.outer) {
+                metrics.lookupDepth++;
+                if (env.lookup(symbol) != null) return env;
+            }
+            return null;
         }
 
         public MalType get(MalSymbol symbol) {
-            Env env = this.find(symbol);
-
-            if (env != null) return env.data.get(symbol);
-            else return null;
+            metrics.lookups++;
+            for (Env env = this; env != null; env = env.outer) {
+                metrics.lookupDepth++;
+                MalType value = env.lookup(symbol);
+                if (value != null) return value;
+            }
+            return null;
         }
     }
 }
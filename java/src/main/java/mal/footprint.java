@@ -0,0 +1,76 @@
+package mal;
+
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.StringJoiner;
+import java.util.function.IntFunction;
+
+import mal.types.MalDouble;
+import mal.types.MalInt;
+import mal.types.MalList;
+import mal.types.MalString;
+import mal.types.MalType;
+
+public class footprint {
+    // Prints the heap footprint of the common kinds of values: the instance
+    // fields of each class, and the bytes allocated per instance, measured
+    // with the allocation counter of the current thread. Run it with
+    //
+    //     java -cp target/classes mal.footprint
+    //
+    // The counts include everything that making a value allocates, e.g., a
+    // boxed field, but not what is shared, such as the string of a MalString
+    // or the rest of a list.
+
+    private static final int N = 100000;
+
+    private static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean)ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Return the bytes allocated per call of make.
+    private static double measure(IntFunction<MalType> make) {
+        MalType[] values = new MalType[N];
+        double result = 0;
+        // The first rounds warm up the JIT compiler.
+        for (int round = 0; round < 5; round++) {
+            long before = allocatedBytes();
+            for (int i = 0; i < N; i++) {
+                values[i] = make.apply(i);
+            }
+            result = (double)(allocatedBytes() - before) / N;
+        }
+        return result;
+    }
+
+    private static String fields(Class<?> type) {
+        StringJoiner result = new StringJoiner(", ");
+        for (Class<?> c = type; c != Object.class; c = c.getSuperclass()) {
+            for (Field field : c.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers())) continue;
+                result.add(field.getType().getSimpleName() + " " + field.getName());
+            }
+        }
+        return result.toString();
+    }
+
+    private static void report(String name, Class<?> type, IntFunction<MalType> make) {
+        System.out.println(String.format("%-12s %8.1f  %s", name, measure(make), fields(type)));
+    }
+
+    public static void main(String[] args) {
+        String[] strings = new String[N];
+        for (int i = 0; i < N; i++) {
+            strings[i] = Integer.toString(i);
+        }
+        MalType nil = types.Nil;
+        MalList empty = new MalList();
+
+        System.out.println(String.format("%-12s %8s  %s", "value", "bytes", "fields"));
+        report("MalInt", MalInt.class, i -> new MalInt(1000000 + i));
+        report("MalDouble", MalDouble.class, i -> new MalDouble(i));
+        report("MalString", MalString.class, i -> new MalString(strings[i]));
+        report("MalList cell", MalList.class, i -> new MalList(nil, empty));
+    }
+}
@@ -0,0 +1,661 @@
+package mal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+import mal.analyzer.Node;
+import mal.env.Env;
+import mal.types.MalFunction;
+import mal.types.MalException;
+import mal.types.MalSymbol;
+import mal.types.MalType;
+import mal.types.MalUserFunction;
+
+public class jit {
+    // The second execution tier. Once a function has been called often enough,
+    // its analyzed body is translated into a JVM class, which is loaded through
+    // its own class loader and replaces the interpreted body. The JVM's own JIT
+    // can then optimize the function body as a whole instead of a tree of
+    // small eval() methods.
+    //
+    // The compiled code calls back into the helpers at the end of this class
+    // for anything that touches the environment or calls a function. Nodes the
+    // compiler doesn't handle are evaluated by calling their interpreted
+    // version, so any body can be compiled.
+    //
+    // The tier is controlled by the system property mal.jit:
+    //
+    //   tiered  Compile a function after mal.jit.threshold calls (default).
+    //   off     Only interpret.
+    //   always  Compile every function on its first call.
+
+    static final String mode = System.getProperty("mal.jit", "tiered");
+
+    static final int threshold;
+    static {
+        switch (mode) {
+        case "off":
+            threshold = Integer.MAX_VALUE;
+            break;
+        case "always":
+            threshold = 1;
+            break;
+        default:
+            threshold = Integer.getInteger("mal.jit.threshold", 1000);
+        }
+    }
+
+    private static int classCount = 0;
+
+    /**
+     * Compile an analyzed function body.
+     * <p>
+     * If the body cannot be compiled, which means that the compiler has a
+     * bug, this is reported on standard error and the body is returned
+     * unchanged. With mal.jit=always, an IllegalStateException is thrown
+     * instead, so that tests run in that mode fail.
+     *
+     * @param body The body to be compiled.
+     */
+    static Node compile(Node body) {
+        String name = "mal/JitCode" + (++classCount);
+
+        try {
+            Compiler compiler = new Compiler(name);
+            byte[] classFile = compiler.compileClass(body);
+
+            Class<?> cls = new Loader().define(name.replace('/', '.'), classFile);
+            return (Node)cls.getConstructor(Object[].class).newInstance((Object)compiler.constants.toArray());
+        } catch(Exception | LinkageError ex) {
+            if (mode.equals("always")) throw new IllegalStateException("Cannot compile a function body.", ex);
+            System.err.println("Cannot compile a function body, interpreting it instead: " + ex);
+            return body;
+        }
+    }
+
+    private static class Loader extends ClassLoader {
+        Loader() {
+            super(jit.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] classFile) {
+            return defineClass(name, classFile, 0, classFile.length);
+        }
+    }
+
+    // The class file version. Version 49 class files are verified by type
+    // inference, so the compiler doesn't have to emit stack map frames.
+    private static final int CLASS_VERSION = 49;
+
+    private static final String NODE = "mal/analyzer$Node";
+    private static final String JIT = "mal/jit";
+    private static final String ENV = "Lmal/env$Env;";
+    private static final String TYPE = "Lmal/types$MalType;";
+    private static final String FUNCTION = "Lmal/types$MalFunction;";
+    private static final String OBJECTS = "[Ljava/lang/Object;";
+
+    private static final int ICONST_0 = 0x03, BIPUSH = 0x10, SIPUSH = 0x11;
+    private static final int ALOAD = 0x19, ALOAD_0 = 0x2a, ALOAD_1 = 0x2b, AALOAD = 0x32;
+    private static final int ASTORE = 0x3a, AASTORE = 0x53, POP = 0x57, DUP = 0x59;
+    private static final int IFEQ = 0x99, GOTO = 0xa7, ARETURN = 0xb0, RETURN = 0xb1;
+    private static final int GETFIELD = 0xb4, PUTFIELD = 0xb5;
+    private static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+    private static final int NEW = 0xbb, ANEWARRAY = 0xbd, CHECKCAST = 0xc0, INSTANCEOF = 0xc1;
+
+    private static final class ConstantPool {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        final HashMap<String,Integer> entries = new HashMap<>();
+        int count = 1;
+
+        private int add(String key, int tag, int a, int b) throws IOException {
+            Integer index = entries.get(key);
+            if (index != null) return index;
+
+            out.writeByte(tag);
+            out.writeShort(a);
+            if (b >= 0) out.writeShort(b);
+
+            entries.put(key, count);
+            return count++;
+        }
+
+        int utf8(String value) throws IOException {
+            Integer index = entries.get("U" + value);
+            if (index != null) return index;
+
+            out.writeByte(1);
+            out.writeUTF(value);
+
+            entries.put("U" + value, count);
+            return count++;
+        }
+
+        int classRef(String name) throws IOException {
+            return add("C" + name, 7, utf8(name), -1);
+        }
+
+        int nameAndType(String name, String descriptor) throws IOException {
+            return add("N" + name + " " + descriptor, 12, utf8(name), utf8(descriptor));
+        }
+
+        int fieldRef(String owner, String name, String descriptor) throws IOException {
+            return add("F" + owner + " " + name + " " + descriptor, 9, classRef(owner), nameAndType(name, descriptor));
+        }
+
+        int methodRef(String owner, String name, String descriptor) throws IOException {
+            return add("M" + owner + " " + name + " " + descriptor, 10, classRef(owner), nameAndType(name, descriptor));
+        }
+    }
+
+    private static final class Label {
+        int position = -1;
+        List<Integer> branches = new ArrayList<>();
+    }
+
+    // The bytecode of one method. The maximum operand stack depth is tracked
+    // as instructions are emitted.
+    private static final class Code {
+        byte[] bytes = new byte[256];
+        int length = 0;
+        int stack = 0;
+        int maxStack = 0;
+
+        void u1(int value) {
+            if (length == bytes.length) bytes = java.util.Arrays.copyOf(bytes, 2 * length);
+            bytes[length++] = (byte)value;
+        }
+
+        void u2(int value) {
+            u1(value >> 8);
+            u1(value);
+        }
+
+        void adjust(int delta) {
+            stack += delta;
+            if (stack > maxStack) maxStack = stack;
+        }
+
+        void op(int opcode, int delta) {
+            u1(opcode);
+            adjust(delta);
+        }
+
+        void op(int opcode, int operand, int delta) {
+            u1(opcode);
+            u2(operand);
+            adjust(delta);
+        }
+
+        void pushInt(int value) {
+            if (value >= 0 && value <= 5) op(ICONST_0 + value, 1);
+            else if (value < 128) {
+                op(BIPUSH, 1);
+                u1(value);
+            } else op(SIPUSH, value, 1);
+        }
+
+        void aload(int local) {
+            u1(ALOAD);
+            u1(local);
+            adjust(1);
+        }
+
+        void astore(int local) {
+            u1(ASTORE);
+            u1(local);
+            adjust(-1);
+        }
+
+        void branch(int opcode, Label target, int delta) {
+            target.branches.add(length);
+            op(opcode, 0, delta);
+        }
+
+        void mark(Label label) {
+            label.position = length;
+        }
+
+        byte[] finish() {
+            for (Label label : labels) {
+                for (int branch : label.branches) {
+                    int offset = label.position - branch;
+                    bytes[branch+1] = (byte)(offset >> 8);
+                    bytes[branch+2] = (byte)offset;
+                }
+            }
+            return java.util.Arrays.copyOf(bytes, length);
+        }
+
+        final List<Label> labels = new ArrayList<>();
+
+        Label label() {
+            Label label = new Label();
+            labels.add(label);
+            return label;
+        }
+    }
+
+    private static final class Compiler {
+        final String className;
+        final ConstantPool pool = new ConstantPool();
+        final List<Object> constants = new ArrayList<>();
+        Code code;
+        int maxLocals;
+        // The frame and the start of the innermost loop* being compiled.
+        int loopFrame;
+        Label loopStart = null;
+
+        Compiler(String className) {
+            this.className = className;
+        }
+
+        byte[] compileClass(Node body) throws IOException {
+            int thisClass = pool.classRef(className);
+            int superClass = pool.classRef(NODE);
+            int field = pool.fieldRef(className, "k", OBJECTS);
+
+            byte[] init = compileInit(field);
+            int initMaxStack = code.maxStack;
+
+            // eval(Env): local 0 is this, local 1 is the environment.
+            code = new Code();
+            maxLocals = 2;
+            compile(body, 1);
+            code.op(ARETURN, -1);
+            byte[] eval = code.finish();
+            if (eval.length > 65535) throw new IOException("Method too large.");
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            int codeAttribute = pool.utf8("Code");
+            int fieldName = pool.utf8("k");
+            int fieldType = pool.utf8(OBJECTS);
+            int initName = pool.utf8("<init>");
+            int initType = pool.utf8("(" + OBJECTS + ")V");
+            int evalName = pool.utf8("eval");
+            int evalType = pool.utf8("(" + ENV + ")" + TYPE);
+
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(CLASS_VERSION);
+            out.writeShort(pool.count);
+            pool.out.flush();
+            pool.bytes.writeTo(out);
+            out.writeShort(0x0031); // public final super
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+
+            out.writeShort(1); // fields
+            out.writeShort(0x0012); // private final
+            out.writeShort(fieldName);
+            out.writeShort(fieldType);
+            out.writeShort(0);
+
+            out.writeShort(2); // methods
+            writeMethod(out, initName, initType, codeAttribute, init, initMaxStack, 2);
+            writeMethod(out, evalName, evalType, codeAttribute, eval, code.maxStack, maxLocals);
+
+            out.writeShort(0); // attributes
+            out.flush();
+            return bytes.toByteArray();
+        }
+
+        private void writeMethod(DataOutputStream out, int name, int type, int codeAttribute, byte[] bytecode, int maxStack, int maxLocals) throws IOException {
+            out.writeShort(0x0001); // public
+            out.writeShort(name);
+            out.writeShort(type);
+            out.writeShort(1);
+            out.writeShort(codeAttribute);
+            out.writeInt(12 + bytecode.length);
+            out.writeShort(maxStack);
+            out.writeShort(maxLocals);
+            out.writeInt(bytecode.length);
+            out.write(bytecode);
+            out.writeShort(0); // exception table
+            out.writeShort(0); // attributes
+        }
+
+        private byte[] compileInit(int field) throws IOException {
+            code = new Code();
+            code.op(ALOAD_0, 1);
+            code.op(INVOKESPECIAL, pool.methodRef(NODE, "<init>", "()V"), -1);
+            code.op(ALOAD_0, 1);
+            code.op(ALOAD_1, 1);
+            code.op(PUTFIELD, field, -2);
+            code.op(RETURN, 0);
+            return code.finish();
+        }
+
+        private int newLocal() throws IOException {
+            if (maxLocals == 255) throw new IOException("Too many local variables.");
+            return maxLocals++;
+        }
+
+        // Push constant, cast to the given class.
+        private void pushConstant(Object value, String type) throws IOException {
+            if (constants.size() == Short.MAX_VALUE) throw new IOException("Too many constants.");
+            constants.add(value);
+            code.op(ALOAD_0, 1);
+            code.op(GETFIELD, pool.fieldRef(className, "k", OBJECTS), 0);
+            code.pushInt(constants.size() - 1);
+            code.op(AALOAD, -1);
+            code.op(CHECKCAST, pool.classRef(type), 0);
+        }
+
+        private void invokeHelper(String name, String descriptor, int delta) throws IOException {
+            code.op(INVOKESTATIC, pool.methodRef(JIT, name, descriptor), delta);
+        }
+
+        // Let the interpreter evaluate the node.
+        private void fallback(Node node, int env) throws IOException {
+            pushConstant(node, NODE);
+            code.aload(env);
+            code.op(INVOKEVIRTUAL, pool.methodRef(NODE, "eval", "(" + ENV + ")" + TYPE), -1);
+        }
+
+        // Emit code that leaves the value of node on the stack. env is the local
+        // variable holding the environment.
+        void compile(Node node, int env) throws IOException {
+            if (node instanceof analyzer.Const) {
+                pushConstant(((analyzer.Const)node).value, "mal/types$MalType");
+            } else if (node instanceof analyzer.LocalRef) {
+                analyzer.LocalRef ref = (analyzer.LocalRef)node;
+                code.aload(env);
+                code.pushInt(ref.depth);
+                code.pushInt(ref.slot);
+                pushConstant(ref, NODE);
+                invokeHelper("local", "(" + ENV + "IIL" + NODE + ";)" + TYPE, -3);
+            } else if (node instanceof analyzer.If) {
+                compileIf((analyzer.If)node, env);
+            } else if (node instanceof analyzer.Do) {
+                Node[] body = ((analyzer.Do)node).body;
+                for (int i = 0; i < body.length - 1; i++) {
+                    compile(body[i], env);
+                    code.op(POP, -1);
+                }
+                compile(body[body.length - 1], env);
+            } else if (node instanceof analyzer.Let) {
+                compileLet((analyzer.Let)node, env);
+            } else if (node instanceof analyzer.Loop) {
+                compileLoop((analyzer.Loop)node, env);
+            } else if (node instanceof analyzer.Recur && loopStart != null) {
+                compileRecur((analyzer.Recur)node, env);
+            } else if (node.getClass() == analyzer.Def.class) {
+                analyzer.Def def = (analyzer.Def)node;
+                code.aload(env);
+                pushConstant(def, NODE);
+                compile(def.value, env);
+                invokeHelper("def", "(" + ENV + "L" + NODE + ";" + TYPE + ")" + TYPE, -2);
+            } else if (node instanceof analyzer.Call) {
+                compileCall((analyzer.Call)node, env);
+            } else {
+                fallback(node, env);
+            }
+        }
+
+        private void compileIf(analyzer.If node, int env) throws IOException {
+            Label otherwise = code.label();
+            Label end = code.label();
+
+            compile(node.test, env);
+            invokeHelper("isTrue", "(" + TYPE + ")Z", 0);
+            code.branch(IFEQ, otherwise, -1);
+
+            int stack = code.stack;
+            compile(node.then, env);
+            code.branch(GOTO, end, 0);
+
+            code.mark(otherwise);
+            code.stack = stack;
+            compile(node.otherwise, env);
+            code.mark(end);
+        }
+
+        private void compileLet(analyzer.Let node, int env) throws IOException {
+            int frame = newLocal();
+
+            code.aload(env);
+            pushConstant(node.names, "[Lmal/types$MalSymbol;");
+            invokeHelper("frame", "(" + ENV + "[Lmal/types$MalSymbol;)" + ENV, -1);
+            code.astore(frame);
+
+            for (int i = 0; i < node.values.length; i++) {
+                code.aload(frame);
+                code.pushInt(node.slots[i]);
+                compile(node.values[i], frame);
+                invokeHelper("bind", "(" + ENV + "I" + TYPE + ")V", -3);
+            }
+
+            compile(node.body, frame);
+        }
+
+        // A loop* binds its frame once and then jumps back to the start of its
+        // body on every recur, with a copy of the frame if a function refers
+        // to it. A recur the compiler doesn't see, e.g., one in a macro
+        // expansion, is left to the interpreter, which rebinds the variables
+        // and returns a marker instead.
+        private void compileLoop(analyzer.Loop node, int env) throws IOException {
+            int frame = newLocal();
+
+            code.aload(env);
+            pushConstant(node.names, "[Lmal/types$MalSymbol;");
+            invokeHelper("frame", "(" + ENV + "[Lmal/types$MalSymbol;)" + ENV, -1);
+            code.astore(frame);
+
+            for (int i = 0; i < node.values.length; i++) {
+                code.aload(frame);
+                code.pushInt(node.slots[i]);
+                compile(node.values[i], frame);
+                invokeHelper("bind", "(" + ENV + "I" + TYPE + ")V", -3);
+            }
+
+            int outerFrame = loopFrame;
+            Label outerStart = loopStart;
+            Label start = code.label();
+            Label end = code.label();
+
+            loopFrame = frame;
+            loopStart = start;
+            code.mark(start);
+            compile(node.body, frame);
+            loopFrame = outerFrame;
+            loopStart = outerStart;
+
+            code.op(DUP, 1);
+            invokeHelper("isRecur", "(" + TYPE + ")Z", 0);
+            code.branch(IFEQ, end, -1);
+            code.op(POP, -1);
+            code.aload(frame);
+            invokeHelper("nextFrame", "(" + ENV + ")" + ENV, 0);
+            code.astore(frame);
+            code.branch(GOTO, start, 0);
+            code.mark(end);
+            code.stack++;
+
+            if (!node.tail) invokeHelper("force", "(" + TYPE + ")" + TYPE, 0);
+        }
+
+        private void compileRecur(analyzer.Recur node, int env) throws IOException {
+            int n = node.values.length;
+
+            // All values are evaluated before any variable is rebound, in
+            // the frame of the next iteration.
+            int[] temps = new int[n];
+            for (int i = 0; i < n; i++) {
+                compile(node.values[i], env);
+                temps[i] = newLocal();
+                code.astore(temps[i]);
+            }
+
+            pushConstant(node, NODE);
+            code.aload(loopFrame);
+            invokeHelper("recurFrame", "(L" + NODE + ";" + ENV + ")" + ENV, -1);
+            code.astore(loopFrame);
+
+            for (int i = 0; i < n; i++) {
+                code.aload(loopFrame);
+                code.pushInt(node.slots[i]);
+                code.aload(temps[i]);
+                invokeHelper("bind", "(" + ENV + "I" + TYPE + ")V", -3);
+            }
+            invokeHelper("step", "()V", 0);
+            code.branch(GOTO, loopStart, 0);
+
+            // Nothing after the jump is reached, but the code around a recur
+            // expects it to leave a value.
+            code.stack++;
+        }
+
+        private void compileCall(analyzer.Call node, int env) throws IOException {
+            int fn = newLocal();
+            Label end = code.label();
+
+            compile(node.head, env);
+            code.astore(fn);
+
+            // A call whose head is a symbol may turn out to be a macro call,
+            // which the interpreter knows how to expand.
+            if (node.head instanceof analyzer.SymbolRef) {
+                Label call = code.label();
+
+                code.aload(fn);
+                invokeHelper("isMacro", "(" + TYPE + ")Z", 0);
+                code.branch(IFEQ, call, -1);
+                fallback(node, env);
+                code.branch(GOTO, end, 0);
+                code.mark(call);
+                code.stack--;
+            }
+
+            code.aload(fn);
+            invokeHelper("callee", "(" + TYPE + ")" + FUNCTION, 0);
+
+            // Push the arguments, or an array of them if there are more than
+            // fit the fixed-arity entry points.
+            int nArgs = node.args.length;
+            String method, params;
+            if (nArgs <= 3) {
+                params = "";
+                for (Node arg : node.args) {
+                    compile(arg, env);
+                    params += TYPE;
+                }
+                method = "apply" + nArgs;
+            } else {
+                code.pushInt(nArgs);
+                code.op(ANEWARRAY, pool.classRef("mal/types$MalType"), 0);
+                for (int i = 0; i < nArgs; i++) {
+                    code.op(DUP, 1);
+                    code.pushInt(i);
+                    compile(node.args[i], env);
+                    code.op(AASTORE, -3);
+                }
+                params = "[" + TYPE;
+                method = "applyN";
+                nArgs = 1;
+            }
+
+            // The call itself is emitted here rather than in a helper, so that
+            // every call site gets its own type profile.
+            if (node.tail) {
+                Label call = code.label();
+
+                code.aload(fn);
+                code.op(INSTANCEOF, pool.classRef("mal/types$MalUserFunction"), 0);
+                code.branch(IFEQ, call, -1);
+                invokeHelper("tailCall", "(" + FUNCTION + params + ")" + TYPE, -nArgs);
+                code.branch(GOTO, end, 0);
+                code.mark(call);
+                code.stack += nArgs;
+            }
+            code.op(INVOKEVIRTUAL, pool.methodRef("mal/types$MalFunction", method, "(" + params + ")" + TYPE), -nArgs);
+            code.mark(end);
+        }
+    }
+
+    // Helpers called by compiled code. Compiled classes are defined by their
+    // own class loader, so these have to be public.
+
+    public static MalType local(Env env, int depth, int slot, Node ref) throws MalException {
+        Env frame = env;
+        for (int i = depth; i > 0; i--) {
+            frame = frame.outer;
+        }
+
+        MalType result = frame.slots[slot];
+        if (result != null) return result;
+        else return ref.eval(env);
+    }
+
+    public static boolean isTrue(MalType value) {
+        return value != types.Nil && value != types.False;
+    }
+
+    public static Env frame(Env outer, MalSymbol[] names) {
+        return new Env(outer, names);
+    }
+
+    public static void bind(Env frame, int slot, MalType value) {
+        frame.slots[slot] = value;
+    }
+
+    public static MalType def(Env env, Node def, MalType value) {
+        return ((analyzer.Def)def).assign(env, value);
+    }
+
+    public static void step() throws MalException {
+        budget.step();
+    }
+
+    public static Env recurFrame(Node recur, Env frame) {
+        return ((analyzer.Recur)recur).frame(frame);
+    }
+
+    public static Env nextFrame(Env frame) {
+        return analyzer.nextFrame(frame);
+    }
+
+    public static boolean isRecur(MalType value) {
+        return value == analyzer.RECUR;
+    }
+
+    public static MalType force(MalType result) throws MalException {
+        return analyzer.force(result);
+    }
+
+    public static boolean isMacro(MalType fn) {
+        return fn instanceof MalUserFunction && ((MalUserFunction)fn).isMacro();
+    }
+
+    public static MalFunction callee(MalType fn) throws MalException {
+        if (!(fn instanceof MalFunction)) throw new MalException("Eval error: `" + fn + "' is not a function.");
+        return (MalFunction)fn;
+    }
+
+    public static MalType tailCall(MalFunction fn) throws MalException {
+        return analyzer.tailCall(fn, 0, null, null, null);
+    }
+
+    public static MalType tailCall(MalFunction fn, MalType arg1) throws MalException {
+        return analyzer.tailCall(fn, 1, arg1, null, null);
+    }
+
+    public static MalType tailCall(MalFunction fn, MalType arg1, MalType arg2) throws MalException {
+        return analyzer.tailCall(fn, 2, arg1, arg2, null);
+    }
+
+    public static MalType tailCall(MalFunction fn, MalType arg1, MalType arg2, MalType arg3) throws MalException {
+        return analyzer.tailCall(fn, 3, arg1, arg2, arg3);
+    }
+
+    public static MalType tailCall(MalFunction fn, MalType[] args) throws MalException {
+        return analyzer.tailCall(fn, args);
+    }
+}
@@ -0,0 +1,393 @@
+package mal;
+
+import java.util.Arrays;
+
+import mal.analyzer.Call;
+import mal.analyzer.Composite;
+import mal.analyzer.Def;
+import mal.analyzer.Do;
+import mal.analyzer.If;
+import mal.analyzer.Lambda;
+import mal.analyzer.Let;
+import mal.analyzer.Loop;
+import mal.analyzer.Node;
+import mal.analyzer.Recur;
+import mal.analyzer.TryCatch;
+import mal.env.Env;
+import mal.optimizer.Folded;
+import mal.types.LazySeqException;
+import mal.types.MalError;
+import mal.types.MalException;
+import mal.types.MalFunction;
+import mal.types.MalType;
+import mal.types.MalUserFunction;
+
+public class machine {
+    // An evaluator for analyzed code that keeps its continuations on a stack
+    // in the heap rather than on the Java stack. The tree-walking evaluator
+    // recurses through eval() for every nested call, so deep non-tail
+    // recursion ends in a StackOverflowError. Here, each pending if, do,
+    // let*, loop*, def!, try* or call is a frame on the machine's stack, and
+    // calling a user function just pushes the frames of its body, so the
+    // depth of recursion is only limited by the heap.
+    //
+    // The stack is a set of parallel arrays, so pushing a frame doesn't
+    // allocate. Literals with evaluated parts, such as vectors, are frames
+    // too. The remaining nodes, e.g., references and fn*, don't evaluate
+    // other nodes, or only rarely, like defmacro!, and are evaluated
+    // directly with eval().
+    //
+    // The machine is used instead of the tree-walking evaluator when the
+    // system property mal.engine is set to `stack'.
+
+    static final boolean enabled = System.getProperty("mal.engine", "tree").equals("stack");
+
+    private static Node[] nodes = new Node[64];
+    private static Env[] envs = new Env[64];
+    private static int[] states = new int[64];
+    private static Object[] values = new Object[64];
+    private static int sp = 0;
+
+    // Frame states of a call: evaluating the head, or evaluating an argument.
+    private static final int HEAD = -1;
+
+    private static void push(Node node, Env env, int state, Object value) {
+        if (sp == nodes.length) {
+            int size = 2 * sp;
+            nodes = Arrays.copyOf(nodes, size);
+            envs = Arrays.copyOf(envs, size);
+            states = Arrays.copyOf(states, size);
+            values = Arrays.copyOf(values, size);
+        }
+        nodes[sp] = node;
+        envs[sp] = env;
+        states[sp] = state;
+        values[sp] = value;
+        sp++;
+    }
+
+    private static void pop() {
+        sp--;
+        nodes[sp] = null;
+        envs[sp] = null;
+        values[sp] = null;
+    }
+
+    /**
+     * Evaluate an analyzed form.
+     * <p>
+     * The machine is reentrant: a builtin such as map that calls a user
+     * function starts a nested execution on top of the current one.
+     *
+     * @param node The form to be evaluated.
+     * @param env The environment to evaluate the form in.
+     */
+    static MalType execute(Node node, Env env) throws MalException {
+        int base = sp;
+        MalType value;
+
+        try {
+            while (true) {
+                try {
+                    value = descend(node, env);
+
+                    // Pass the value to the frames on the stack until one of
+                    // them has another node to evaluate.
+                    while (true) {
+                        if (sp == base) return value;
+
+                        int top = sp - 1;
+                        Node frame = nodes[top];
+                        Env frameEnv = envs[top];
+
+                        if (frame instanceof If) {
+                            If ifNode = (If)frame;
+                            pop();
+                            node = (value == types.Nil || value == types.False) ? ifNode.otherwise : ifNode.then;
+                            env = frameEnv;
+                            break;
+                        }
+
+                        if (frame instanceof Do) {
+                            Node[] body = ((Do)frame).body;
+                            int i = ++states[top];
+                            if (i == body.length - 1) pop();
+                            node = body[i];
+                            env = frameEnv;
+                            break;
+                        }
+
+                        if (frame instanceof Let) {
+                            Let let = (Let)frame;
+                            int i = states[top];
+                            frameEnv.slots[let.slots[i]] = value;
+                            if (++i < let.values.length) {
+                                states[top] = i;
+                                node = let.values[i];
+                            } else {
+                                pop();
+                                node = let.body;
+                            }
+                            env = frameEnv;
+                            break;
+                        }
+
+                        if (frame instanceof Loop) {
+                            Loop loop = (Loop)frame;
+                            int i = states[top];
+
+                            // The value of the body is the value of the loop.
+                            if (i == loop.values.length) {
+                                pop();
+                                continue;
+                            }
+
+                            frameEnv.slots[loop.slots[i]] = value;
+                            states[top] = ++i;
+                            node = i < loop.values.length ? loop.values[i] : loop.body;
+                            env = frameEnv;
+                            break;
+                        }
+
+                        if (frame instanceof Recur) {
+                            Recur recur = (Recur)frame;
+                            int i = states[top];
+                            MalType[] results = (MalType[])values[top];
+                            results[i] = value;
+
+                            if (++i < recur.values.length) {
+                                states[top] = i;
+                                node = recur.values[i];
+                                env = frameEnv;
+                                break;
+                            }
+
+                            pop();
+                            node = restart(recur, results);
+                            env = envs[sp-1];
+                            break;
+                        }
+
+                        if (frame instanceof Composite) {
+                            Composite composite = (Composite)frame;
+                            int i = states[top];
+                            MalType[] results = (MalType[])values[top];
+                            results[i] = value;
+
+                            if (++i < composite.parts.length) {
+                                states[top] = i;
+                                node = composite.parts[i];
+                                env = frameEnv;
+                                break;
+                            }
+
+                            pop();
+                            value = composite.build(results);
+                            continue;
+                        }
+
+                        if (frame instanceof Def) {
+                            pop();
+                            value = ((Def)frame).assign(frameEnv, value);
+                            continue;
+                        }
+
+                        if (frame instanceof TryCatch) {
+                            pop();
+                            continue;
+                        }
+
+                        // A call.
+                        Call call = (Call)frame;
+                        int i = states[top];
+
+                        if (i == HEAD) {
+                            if (call.isMacroCall(value)) {
+                                pop();
+                                node = call.expand((MalUserFunction)value);
+                                env = frameEnv;
+                                break;
+                            }
+                            if (!(value instanceof MalFunction)) throw new MalException("Eval error: `" + value + "' is not a function.");
+
+                            // The callee followed by the arguments.
+                            MalType[] pending = new MalType[call.args.length + 1];
+                            pending[0] = value;
+
+                            if (call.args.length > 0) {
+                                states[top] = 0;
+                                values[top] = pending;
+                                node = call.args[0];
+                                env = frameEnv;
+                                break;
+                            }
+
+                            pop();
+                            node = apply(pending);
+                        } else {
+                            MalType[] pending = (MalType[])values[top];
+                            pending[i + 1] = value;
+                            value = null;
+
+                            if (++i < call.args.length) {
+                                states[top] = i;
+                                node = call.args[i];
+                                env = frameEnv;
+                                break;
+                            }
+
+                            pop();
+                            node = apply(pending);
+                        }
+
+                        // A user function continues with its body. Any other
+                        // function has already been called.
+                        // The results are cleared as they are read, or the
+                        // next builtin would run while they still hold,
+                        // e.g., the head of a lazy sequence it walks.
+                        if (node != null) {
+                            env = callEnv;
+                            callEnv = null;
+                            break;
+                        }
+                        value = callResult;
+                        callResult = null;
+                    }
+                } catch(MalException | LazySeqException caught) {
+                    MalException ex = LazySeqException.unwrap(caught);
+                    // Unwind to the innermost try* of this execution.
+                    while (sp > base && !(nodes[sp-1] instanceof TryCatch)) {
+                        pop();
+                    }
+                    if (sp == base) throw ex;
+
+                    metrics.exceptions++;
+                    TryCatch tryCatch = (TryCatch)nodes[sp-1];
+                    Env catchEnv = new Env(envs[sp-1], tryCatch.catchVar);
+                    catchEnv.slots[0] = new MalError(ex.getErrVal());
+                    pop();
+
+                    node = tryCatch.handler;
+                    env = catchEnv;
+                }
+            }
+        } finally {
+            while (sp > base) {
+                pop();
+            }
+        }
+    }
+
+    // The result of apply(): either the environment in which to evaluate the
+    // body it returned, or the value of the call.
+    private static Env callEnv;
+    private static MalType callResult;
+
+    // Rebind the variables of the loop* a recur jumps back to, and return the
+    // body of the loop. A recur is in tail position, so the frame of its loop
+    // is at the top of the stack, where the copy of the environment goes if
+    // the recur makes one.
+    private static Node restart(Recur recur, MalType[] results) throws MalException {
+        budget.step();
+        Loop loop = (Loop)nodes[sp-1];
+        Env loopEnv = recur.frame(envs[sp-1]);
+        envs[sp-1] = loopEnv;
+
+        for (int i = 0; i < recur.slots.length; i++) {
+            loopEnv.slots[recur.slots[i]] = results[i];
+        }
+        return loop.body;
+    }
+
+    private static Node apply(MalType[] call) throws MalException {
+        MalFunction fn = (MalFunction)call[0];
+        int nArgs = call.length - 1;
+
+        if (fn instanceof MalUserFunction) {
+            MalUserFunction userFn = (MalUserFunction)fn;
+            Lambda lambda = userFn.getLambda();
+            if (nArgs > 3) callEnv = lambda.bind(userFn.getEnv(), Arrays.copyOfRange(call, 1, call.length));
+            else callEnv = lambda.bind(userFn.getEnv(), nArgs, get(call, 1), get(call, 2), get(call, 3));
+            return lambda.body;
+        }
+
+        // The arguments are taken out of call, so that it doesn't keep them
+        // while the builtin runs, e.g., the head of a lazy sequence it walks.
+        switch (nArgs) {
+        case 0: callResult = fn.apply0(); break;
+        case 1: callResult = fn.apply1(take(call, 1)); break;
+        case 2: callResult = fn.apply2(take(call, 1), take(call, 2)); break;
+        case 3: callResult = fn.apply3(take(call, 1), take(call, 2), take(call, 3)); break;
+        default:
+            MalType[] args = Arrays.copyOfRange(call, 1, call.length);
+            Arrays.fill(call, 1, call.length, null);
+            callResult = fn.applyN(args);
+        }
+        return null;
+    }
+
+    private static MalType get(MalType[] array, int i) {
+        return i < array.length ? array[i] : null;
+    }
+
+    private static MalType take(MalType[] array, int i) {
+        MalType value = array[i];
+        array[i] = null;
+        return value;
+    }
+
+    // Evaluate node, pushing a frame for every node that has to wait for the
+    // value of one of its children, until a node can be evaluated directly.
+    private static MalType descend(Node node, Env env) throws MalException {
+        while (true) {
+            if (node instanceof If) {
+                push(node, env, 0, null);
+                node = ((If)node).test;
+            } else if (node instanceof Do) {
+                Node[] body = ((Do)node).body;
+                if (body.length > 1) push(node, env, 0, null);
+                node = body[0];
+            } else if (node instanceof Let) {
+                Let let = (Let)node;
+                env = new Env(env, let.names);
+                if (let.values.length == 0) {
+                    node = let.body;
+                } else {
+                    push(node, env, 0, null);
+                    node = let.values[0];
+                }
+            } else if (node instanceof Loop) {
+                Loop loop = (Loop)node;
+                env = new Env(env, loop.names);
+                push(node, env, 0, null);
+                node = loop.values.length == 0 ? loop.body : loop.values[0];
+            } else if (node instanceof Recur) {
+                Recur recur = (Recur)node;
+                if (recur.values.length == 0) {
+                    node = restart(recur, null);
+                    env = envs[sp-1];
+                } else {
+                    push(node, env, 0, new MalType[recur.values.length]);
+                    node = recur.values[0];
+                }
+            } else if (node.getClass() == Def.class) {
+                push(node, env, 0, null);
+                node = ((Def)node).value;
+            } else if (node instanceof TryCatch) {
+                push(node, env, 0, null);
+                node = ((TryCatch)node).body;
+            } else if (node instanceof Call) {
+                push(node, env, HEAD, null);
+                node = ((Call)node).head;
+            } else if (node instanceof Composite && ((Composite)node).parts.length > 0) {
+                Composite composite = (Composite)node;
+                push(node, env, 0, new MalType[composite.parts.length]);
+                node = composite.parts[0];
+            } else if (node instanceof Folded) {
+                node = ((Folded)node).select();
+            } else {
+                return node.run(env);
+            }
+        }
+    }
+}
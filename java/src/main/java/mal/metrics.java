@@ -0,0 +1,101 @@
+package mal;
+
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+import mal.types.MalHash;
+import mal.types.MalInt;
+import mal.types.MalKeyword;
+
+public class metrics {
+    // Counters of interpreter events, returned by the builtin runtime-stats
+    // and, if the system property mal.jmx is `on', exposed as the JMX MBean
+    // mal:type=Interpreter. (The platform MBean server takes a noticeable
+    // time to start, so it isn't started by default.)
+    //
+    // The interpreter runs on a single thread, so the counters are plain
+    // fields that only that thread writes to. Recording an event is a single
+    // increment without any synchronization; readers on other threads, such
+    // as JMX clients, may see values that are slightly out of date.
+
+    // Calls of EVAL, i.e., forms evaluated at the top level or with eval.
+    // EVAL analyzes the form and hands it to an engine, which evaluates the
+    // subforms without calling EVAL again, so they aren't counted.
+    static long evalCalls = 0;
+    // Lookups of symbols by name, and the number of environments searched.
+    static long lookups = 0;
+    static long lookupDepth = 0;
+    // Applications of a macro to a form.
+    static long macroExpansions = 0;
+    // Errors caught by a try* or reported at the top level. Those the
+    // interpreter raises and handles itself aren't counted.
+    static long exceptions = 0;
+    // Calls of user functions.
+    static long calls = 0;
+
+    public interface InterpreterMBean {
+        long getEvalCalls();
+        long getLookups();
+        long getLookupDepth();
+        long getMacroExpansions();
+        long getExceptions();
+        long getCalls();
+    }
+
+    public static class Interpreter implements InterpreterMBean {
+        @Override
+        public long getEvalCalls() {
+            return evalCalls;
+        }
+
+        @Override
+        public long getLookups() {
+            return lookups;
+        }
+
+        @Override
+        public long getLookupDepth() {
+            return lookupDepth;
+        }
+
+        @Override
+        public long getMacroExpansions() {
+            return macroExpansions;
+        }
+
+        @Override
+        public long getExceptions() {
+            return exceptions;
+        }
+
+        @Override
+        public long getCalls() {
+            return calls;
+        }
+    }
+
+    static {
+        if (System.getProperty("mal.jmx", "off").equals("on")) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().registerMBean(new Interpreter(), new ObjectName("mal:type=Interpreter"));
+            } catch(JMException ex) {
+                System.err.println("Cannot register the interpreter MBean: " + ex.getMessage());
+            }
+        }
+    }
+
+    /**
+     * Return the current values of the counters.
+     */
+    static MalHash snapshot() {
+        return new MalHash()
+            .assoc(MalKeyword.intern(":eval-calls"), MalInt.valueOf(evalCalls))
+            .assoc(MalKeyword.intern(":lookups"), MalInt.valueOf(lookups))
+            .assoc(MalKeyword.intern(":lookup-depth"), MalInt.valueOf(lookupDepth))
+            .assoc(MalKeyword.intern(":macro-expansions"), MalInt.valueOf(macroExpansions))
+            .assoc(MalKeyword.intern(":exceptions"), MalInt.valueOf(exceptions))
+            .assoc(MalKeyword.intern(":calls"), MalInt.valueOf(calls));
+    }
+}
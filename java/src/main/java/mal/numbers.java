@@ -0,0 +1,141 @@
+package mal;
+
+import java.math.BigInteger;
+
+import mal.types.MalBigInt;
+import mal.types.MalDouble;
+import mal.types.MalException;
+import mal.types.MalInt;
+import mal.types.MalNumber;
+import mal.types.MalType;
+
+public class numbers {
+    // Arithmetic on the numeric tower. The result of an operation has the
+    // widest type of its operands: if either is a double, so is the result;
+    // otherwise it is an integer, a fixnum if it fits into a long and a
+    // MalBigInt if it doesn't.
+    //
+    // Every operation first checks for two fixnums, and computes their
+    // result with the exact operations of Math, which the JVM compiles to
+    // the machine instruction plus a check of the overflow flag. Only on
+    // overflow, or for other operands, does it fall back to the general
+    // case.
+
+    private static final BigInteger LONG_MIN = BigInteger.valueOf(Long.MIN_VALUE);
+    private static final BigInteger LONG_MAX = BigInteger.valueOf(Long.MAX_VALUE);
+
+    // The kinds of operands, ordered by width.
+    private static final int INT = 0;
+    private static final int BIG = 1;
+    private static final int DOUBLE = 2;
+
+    private static int kind(MalType x) throws MalException {
+        if (x instanceof MalInt) return INT;
+        if (x instanceof MalBigInt) return BIG;
+        if (x instanceof MalDouble) return DOUBLE;
+        throw new MalException("Wrong argument type: expected MalNumber, received " + x.getClass().getSimpleName() + ".");
+    }
+
+    private static BigInteger big(MalType x) {
+        if (x instanceof MalInt) return ((MalInt)x).bigIntegerValue();
+        return ((MalBigInt)x).bigIntegerValue();
+    }
+
+    private static double dbl(MalType x) {
+        return ((MalNumber)x).doubleValue();
+    }
+
+    /**
+     * Return an integer as a fixnum if it fits into one.
+     */
+    static MalNumber normalize(BigInteger value) {
+        if (value.compareTo(LONG_MIN) >= 0 && value.compareTo(LONG_MAX) <= 0) return MalInt.valueOf(value.longValue());
+        return new MalBigInt(value);
+    }
+
+    static MalNumber add(MalType x, MalType y) throws MalException {
+        if (x instanceof MalInt && y instanceof MalInt) {
+            long a = ((MalInt)x).value;
+            long b = ((MalInt)y).value;
+            try {
+                return MalInt.valueOf(Math.addExact(a, b));
+            } catch(ArithmeticException ex) {
+                return normalize(BigInteger.valueOf(a).add(BigInteger.valueOf(b)));
+            }
+        }
+
+        if (Math.max(kind(x), kind(y)) == DOUBLE) return new MalDouble(dbl(x) + dbl(y));
+        return normalize(big(x).add(big(y)));
+    }
+
+    static MalNumber subtract(MalType x, MalType y) throws MalException {
+        if (x instanceof MalInt && y instanceof MalInt) {
+            long a = ((MalInt)x).value;
+            long b = ((MalInt)y).value;
+            try {
+                return MalInt.valueOf(Math.subtractExact(a, b));
+            } catch(ArithmeticException ex) {
+                return normalize(BigInteger.valueOf(a).subtract(BigInteger.valueOf(b)));
+            }
+        }
+
+        if (Math.max(kind(x), kind(y)) == DOUBLE) return new MalDouble(dbl(x) - dbl(y));
+        return normalize(big(x).subtract(big(y)));
+    }
+
+    static MalNumber multiply(MalType x, MalType y) throws MalException {
+        if (x instanceof MalInt && y instanceof MalInt) {
+            long a = ((MalInt)x).value;
+            long b = ((MalInt)y).value;
+            try {
+                return MalInt.valueOf(Math.multiplyExact(a, b));
+            } catch(ArithmeticException ex) {
+                return normalize(BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)));
+            }
+        }
+
+        if (Math.max(kind(x), kind(y)) == DOUBLE) return new MalDouble(dbl(x) * dbl(y));
+        return normalize(big(x).multiply(big(y)));
+    }
+
+    // The quotient of integers is truncated toward zero.
+    static MalNumber divide(MalType x, MalType y) throws MalException {
+        if (x instanceof MalInt && y instanceof MalInt) {
+            long a = ((MalInt)x).value;
+            long b = ((MalInt)y).value;
+            if (b == 0) throw new MalException("Division by zero.");
+            // The only quotient of longs that overflows.
+            if (a == Long.MIN_VALUE && b == -1) return normalize(BigInteger.valueOf(a).negate());
+            return MalInt.valueOf(a / b);
+        }
+
+        if (Math.max(kind(x), kind(y)) == DOUBLE) return new MalDouble(dbl(x) / dbl(y));
+        BigInteger divisor = big(y);
+        if (divisor.signum() == 0) throw new MalException("Division by zero.");
+        return normalize(big(x).divide(divisor));
+    }
+
+    static MalNumber negate(MalType x) throws MalException {
+        return subtract(MalInt.valueOf(0), x);
+    }
+
+    /**
+     * Compare two numbers by value, returning a negative number, zero or a
+     * positive number if x is less than, equal to or greater than y.
+     */
+    static int compare(MalType x, MalType y) throws MalException {
+        if (x instanceof MalInt && y instanceof MalInt) return Long.compare(((MalInt)x).value, ((MalInt)y).value);
+
+        if (Math.max(kind(x), kind(y)) == DOUBLE) return Double.compare(dbl(x), dbl(y));
+        return big(x).compareTo(big(y));
+    }
+
+    /**
+     * Return an integer argument as an int, e.g., for use as an index.
+     */
+    static int intValue(MalType x) throws MalException {
+        long value = x.assertType(MalInt.class).value;
+        if (value < Integer.MIN_VALUE || value > Integer.MAX_VALUE) throw new MalException("Integer out of range: " + value + ".");
+        return (int)value;
+    }
+}
@@ -0,0 +1,139 @@
+package mal;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import mal.analyzer.Call;
+import mal.analyzer.Const;
+import mal.analyzer.GlobalRef;
+import mal.analyzer.If;
+import mal.analyzer.Node;
+import mal.env.Env;
+import mal.types.MalException;
+import mal.types.MalList;
+import mal.types.MalSymbol;
+import mal.types.MalType;
+
+public class optimizer {
+    // Constant folding and dead-branch elimination. The analyzer passes every
+    // if and call node it builds through this pass before the form is
+    // evaluated. Because only analyzed code is optimized, arguments of macro
+    // calls and quoted data are never touched.
+    //
+    // A call is folded if its head is a global reference to one of the pure
+    // core functions below and all its arguments are constants. A folded call
+    // is only valid as long as the core function hasn't been redefined, so it
+    // keeps the original node and falls back to it once any core function has
+    // been redefined. An if whose test is a constant is replaced by the branch
+    // that will be taken.
+    //
+    // The pass is controlled by the system property mal.optimize: `on' (the
+    // default), `off', or `report', which also prints the number of eliminated
+    // nodes when the interpreter exits.
+
+    static final String mode = System.getProperty("mal.optimize", "on");
+    static final boolean enabled = !mode.equals("off");
+
+    // The number of nodes removed from analyzed code so far.
+    static long eliminated = 0;
+
+    static {
+        if (mode.equals("report")) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                System.err.println("Optimizer: eliminated " + eliminated + " nodes.");
+            }));
+        }
+    }
+
+    private static final HashSet<String> pure = new HashSet<>(Arrays.asList(
+        "+", "-", "*", "/", "=", "<", "<=", ">", ">=",
+        "list?", "empty?", "count", "nil?", "true?", "false?",
+        "symbol?", "keyword?", "string?", "number?", "vector?", "map?", "sequential?",
+        "str", "pr-str", "symbol", "keyword"));
+
+    // Core functions that have been redefined, and a counter that is
+    // incremented whenever one is.
+    private static final HashSet<MalSymbol> redefined = new HashSet<>();
+    private static int epoch = 0;
+
+    static void redefine(MalSymbol symbol) {
+        redefined.add(symbol);
+        epoch++;
+    }
+
+    // The result of optimizing a node under the assumption that no core
+    // function is redefined.
+    static class Folded extends Node {
+        final int epoch;
+        final Node folded;
+        final Node original;
+
+        Folded(int epoch, Node folded, Node original) {
+            this.epoch = epoch;
+            this.folded = folded;
+            this.original = original;
+        }
+
+        Node select() {
+            if (epoch == optimizer.epoch) return folded;
+            else return original;
+        }
+
+        @Override
+        public MalType eval(Env env) throws MalException {
+            return select().eval(env);
+        }
+
+        @Override
+        int size() {
+            return folded.size();
+        }
+    }
+
+    // Return the value of node if it is a constant, or null.
+    private static MalType constantValue(Node node) {
+        if (node instanceof Const) return ((Const)node).value;
+
+        if (node instanceof Folded && ((Folded)node).epoch == epoch && ((Folded)node).folded instanceof Const)
+            return ((Const)((Folded)node).folded).value;
+
+        return null;
+    }
+
+    static Node foldCall(Call node) {
+        if (!enabled || !(node.head instanceof GlobalRef)) return node;
+
+        MalSymbol symbol = ((GlobalRef)node.head).symbol;
+        if (!pure.contains(symbol.getJValue()) || redefined.contains(symbol)) return node;
+
+        MalType[] args = new MalType[node.args.length];
+        for (int i = 0; i < args.length; i++) {
+            args[i] = constantValue(node.args[i]);
+            if (args[i] == null) return node;
+        }
+
+        // A call that fails is left alone, so that it fails at runtime.
+        MalType value;
+        try {
+            value = core.ns.get(symbol).applyN(args);
+        } catch(MalException | RuntimeException ex) {
+            return node;
+        }
+
+        eliminated += node.size() - 1;
+        return new Folded(epoch, new Const(value), node);
+    }
+
+    static Node foldIf(If node) {
+        if (!enabled) return node;
+
+        MalType test = constantValue(node.test);
+        if (test == null) return node;
+
+        Node branch = (test == types.Nil || test == types.False) ? node.otherwise : node.then;
+        eliminated += node.size() - branch.size();
+
+        if (node.test instanceof Const) return branch;
+        else return new Folded(epoch, branch, node);
+    }
+}
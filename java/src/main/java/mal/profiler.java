@@ -0,0 +1,225 @@
+package mal;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import mal.analyzer.Lambda;
+import mal.env.Env;
+import mal.types.MalException;
+import mal.types.MalType;
+
+public class profiler {
+    // A profiler for user functions, controlled from mal with the builtins
+    // profile-start, profile-stop and profile-report. While it is running,
+    // every activation of a function body is timed. A tail call ends the
+    // activation of the caller and starts one of the callee, just like it
+    // replaces the caller's frame.
+    //
+    // Functions are identified by the symbol they were first def!-ed under.
+    // Per function, the profiler records the number of calls, the inclusive
+    // time (from entering the function to leaving it, counted once for
+    // recursive activations) and the self time (the inclusive time of each
+    // activation minus that of the functions it called).
+    //
+    // There is also a sampling profiler, enabled by setting the system
+    // property mal.sample to the name of a file. A thread then looks at the
+    // stack of active functions every mal.sample.interval milliseconds (10 by
+    // default), and when the interpreter exits, the number of samples of each
+    // distinct stack is written to the file in the collapsed format read by
+    // flamegraph.pl: the names of the functions from the outermost to the
+    // innermost, separated by semicolons, followed by the count.
+    //
+    // When neither is enabled, the only cost is a check of a static flag per
+    // call. Only the tree-walking evaluator is instrumented.
+
+    static boolean running = false;
+
+    static final String sampleFile = System.getProperty("mal.sample");
+    static final boolean sampling = sampleFile != null;
+
+    // Whether activations are recorded on the profiler's stack.
+    static boolean tracking = sampling;
+
+    static final class Stats {
+        // The profile the counts belong to.
+        int generation;
+        long calls;
+        long inclusive;
+        long self;
+        // The number of activations on the profiler's stack.
+        int active;
+    }
+
+    // Incremented by every profile-start, which discards the previous counts.
+    private static int generation = 0;
+    private static final List<Lambda> profiled = new ArrayList<>();
+
+    // The active functions, their start times and the time spent in the
+    // functions they called. The sampling thread reads the stack as well.
+    private static Lambda[] lambdas = new Lambda[64];
+    private static long[] starts = new long[64];
+    private static long[] children = new long[64];
+    private static volatile int sp = 0;
+
+    static void start() {
+        generation++;
+        profiled.clear();
+        running = true;
+        tracking = true;
+    }
+
+    static void stop() {
+        running = false;
+        tracking = sampling;
+    }
+
+    private static Stats statsOf(Lambda lambda) {
+        Stats stats = lambda.stats;
+        if (stats == null || stats.generation != generation) {
+            stats = new Stats();
+            stats.generation = generation;
+            lambda.stats = stats;
+            profiled.add(lambda);
+        }
+        return stats;
+    }
+
+    // Run the body of lambda in env, recording the activation.
+    static MalType enter(Lambda lambda, Env env) throws MalException {
+        int depth = sp;
+        if (depth == lambdas.length) {
+            int size = 2 * depth;
+            lambdas = Arrays.copyOf(lambdas, size);
+            starts = Arrays.copyOf(starts, size);
+            children = Arrays.copyOf(children, size);
+        }
+        lambdas[depth] = lambda;
+        children[depth] = 0;
+        sp = depth + 1;
+
+        // An activation that started before the current profile isn't
+        // counted.
+        Stats stats = running ? statsOf(lambda) : null;
+        if (stats != null) stats.active++;
+        starts[depth] = System.nanoTime();
+
+        try {
+            return lambda.body.eval(env);
+        } finally {
+            long elapsed = System.nanoTime() - starts[depth];
+            sp = depth;
+            lambdas[depth] = null;
+
+            if (stats != null && stats.generation == generation) {
+                stats.calls++;
+                stats.self += elapsed - children[depth];
+                if (--stats.active == 0) stats.inclusive += elapsed;
+            }
+            if (depth > 0) children[depth-1] += elapsed;
+        }
+    }
+
+    private static final HashMap<String,Long> samples = new HashMap<>();
+
+    private static void sample() {
+        int n = sp;
+        Lambda[] stack = lambdas;
+
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < n && i < stack.length; i++) {
+            Lambda lambda = stack[i];
+            if (lambda == null) continue;
+            if (sb.length() > 0) sb.append(';');
+            sb.append(lambda.displayName());
+        }
+        if (sb.length() == 0) return;
+
+        synchronized (samples) {
+            samples.merge(sb.toString(), 1L, Long::sum);
+        }
+    }
+
+    private static void writeSamples() {
+        try (PrintWriter out = new PrintWriter(new FileWriter(sampleFile))) {
+            synchronized (samples) {
+                for (Map.Entry<String,Long> entry : samples.entrySet()) {
+                    out.println(entry.getKey() + " " + entry.getValue());
+                }
+            }
+        } catch(IOException ex) {
+            System.err.println("Cannot write samples to " + sampleFile + ": " + ex.getMessage());
+        }
+    }
+
+    static {
+        if (sampling) {
+            long interval = Long.parseLong(System.getProperty("mal.sample.interval", "10"));
+
+            Thread sampler = new Thread(() -> {
+                try {
+                    while (true) {
+                        Thread.sleep(interval);
+                        sample();
+                    }
+                } catch(InterruptedException ex) {
+                }
+            }, "mal-sampler");
+            sampler.setDaemon(true);
+            sampler.start();
+
+            Runtime.getRuntime().addShutdownHook(new Thread(profiler::writeSamples));
+        }
+    }
+
+    private static final class Row {
+        final String name;
+        long calls;
+        long inclusive;
+        long self;
+
+        Row(String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Format the counts of the current profile as a table, sorted by self
+     * time.
+     * <p>
+     * The activations aren't kept open across tail calls, which would take
+     * stack space for every one, so the header warns that a function's
+     * inclusive time doesn't include the functions it tail-calls.
+     */
+    static String report() {
+        LinkedHashMap<String,Row> rows = new LinkedHashMap<>();
+        for (Lambda lambda : profiled) {
+            String name = lambda.displayName();
+            Row row = rows.get(name);
+            if (row == null) {
+                row = new Row(name);
+                rows.put(name, row);
+            }
+            row.calls += lambda.stats.calls;
+            row.inclusive += lambda.stats.inclusive;
+            row.self += lambda.stats.self;
+        }
+
+        List<Row> sorted = new ArrayList<>(rows.values());
+        sorted.sort((a, b) -> Long.compare(b.self, a.self));
+
+        StringBuilder sb = new StringBuilder();
+        sb.append("Inclusive times exclude tail calls, which end the caller's activation.\n");
+        sb.append(String.format("%12s %14s %14s  %s%n", "calls", "inclusive ms", "self ms", "function"));
+        for (Row row : sorted) {
+            sb.append(String.format("%12d %14.3f %14.3f  %s%n", row.calls, row.inclusive / 1e6, row.self / 1e6, row.name));
+        }
+        return sb.toString();
+    }
+}
@@ -1,17 +1,18 @@
 package mal;
 
+import java.math.BigInteger;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import mal.types.MalDouble;
 import mal.types.MalException;
 import mal.types.MalHash;
-import mal.types.MalInt;
 import mal.types.MalKeyword;
 import mal.types.MalList;
-import mal.types.MalSequence;
 import mal.types.MalString;
 import mal.types.MalSymbol;
 import mal.types.MalType;
@@ -125,20 +126,15 @@ public class reader {
     }
 
     private static MalType read_list(Reader inputForm) throws MalException {
-        MalSequence result;
+        List<MalType> result = new ArrayList<>();
         String item;
         MalType parsedItem;
 
         String openingDelim = inputForm.next();
         String closingDelim = delims.get(openingDelim);
 
-        switch (openingDelim) {
-        case "(": result = new MalList();
-            break;
-        case "[": result = new MalVector();
-            break;
-        default: throw new MalException("Not a list delimiter: `" + openingDelim + "'.");
-        }
+        if (!(openingDelim.equals("(") || openingDelim.equals("[")))
+            throw new MalException("Not a list delimiter: `" + openingDelim + "'.");
 
         while (true) {
             item = inputForm.peek();
@@ -146,7 +142,8 @@ public class reader {
             if (item == null) throw new MalException("Malformed input: expected `" + closingDelim + "', found EOL.");
             if (item.equals(closingDelim)) {
                 inputForm.next(); // Move past the list's closing parenthesis.
-                return result;
+                if (openingDelim.equals("(")) return new MalList(result);
+                else return new MalVector(result);
             }
             if (delims.containsValue(item)) throw new MalException("Malfored input; expected `" + closingDelim + "', found + `" + item + "'.");
 
@@ -177,41 +174,29 @@ public class reader {
             if (value.equals("}")) throw new MalException("Odd number of elements in hash map.");
             parsedValue = read_form(inputForm);
 
-            result.put(parsedKey, parsedValue);
+            result = result.assoc(parsedKey, parsedValue);
         }
     }
 
     private static MalList read_macro(Reader inputForm) throws MalException {
-        MalList result = new MalList();
-
         String macro = inputForm.next();
 
         String resolution = readerMacros.get(macro);
-        result.add(new MalSymbol(resolution));
 
         MalType resolvedForm = read_form(inputForm);
 
         if (resolvedForm == null) throw new MalException("Incorrect use of reader macro.");
 
-        result.add(resolvedForm);
-
-        return result;
+        return new MalList(MalSymbol.intern(resolution), new MalList(resolvedForm));
     }
 
     private static MalList read_meta(Reader inputForm) throws MalException {
-        MalList result = new MalList();
-
-        result.add(new MalSymbol("with-meta"));
-
         inputForm.next();
 
         MalType data = read_form(inputForm);
         MalType form = read_form(inputForm);
 
-        result.add(form);
-        result.add(data);
-
-        return result;
+        return new MalList(MalSymbol.intern("with-meta"), new MalList(form, new MalList(data)));
     }
 
     private static MalType read_atom(Reader inputForm) throws MalException {
@@ -221,6 +206,7 @@ public class reader {
             rxString = Pattern.compile("\"(?:\\\\.|[^\\\"])*\"?"),
             rxComment = Pattern.compile(";.*"),
             rxNumber = Pattern.compile("[+-]?[0-9]+"),
+            rxDouble = Pattern.compile("[+-]?[0-9]+(?:\\.[0-9]*)?(?:[eE][+-]?[0-9]+)?"),
             rxKeyword = Pattern.compile(":[^\\s\\[\\]{}\\('\"`,;\\)]+"),
             rxSymbol = Pattern.compile("[^\\s\\[\\]{}\\('\"`,;\\)]+");
 
@@ -229,7 +215,9 @@ public class reader {
         else if (rxComment.matcher(item).matches())
             return types.Nil;
         else if (rxNumber.matcher(item).matches())
-            return new MalInt(Integer.parseInt(item));
+            return numbers.normalize(new BigInteger(item));
+        else if (rxDouble.matcher(item).matches())
+            return new MalDouble(Double.parseDouble(item));
         else if (item.equals("nil"))
             return types.Nil;
         else if (item.equals("false"))
@@ -237,9 +225,9 @@ public class reader {
         else if (item.equals("true"))
             return types.True;
         else if (rxKeyword.matcher(item).matches())
-            return new MalKeyword(item);
+            return MalKeyword.intern(item);
         else if (rxSymbol.matcher(item).matches())
-            return new MalSymbol(item);
+            return MalSymbol.intern(item);
         else throw new MalException("Unknown token in input string: `" + item + "'.");
     }
 
@@ -0,0 +1,237 @@
+package mal;
+
+import java.util.Iterator;
+
+import mal.types.MalException;
+import mal.types.MalFunction;
+import mal.types.MalLazySeq;
+import mal.types.MalList;
+import mal.types.MalReduced;
+import mal.types.MalSequence;
+import mal.types.MalType;
+import mal.types.MalVector;
+
+public class transducers {
+    // Reductions and the transformers of reducing functions used by
+    // transduce. A reducing function takes the result so far and an input
+    // and returns the new result; called with no arguments it returns an
+    // initial result, and called with one, once the input is exhausted, it
+    // completes the result. A transformer, or transducer, such as (map f)
+    // or (filter p), takes a reducing function and returns another one that
+    // passes on transformed inputs. Transformers compose with comp, the
+    // first one seeing each input first:
+    //
+    //     (transduce (comp (filter p) (map f)) + xs)
+    //
+    // runs a single loop over xs, which calls p and f for each element and
+    // adds up the results, without building a sequence for either step.
+    //
+    // A reducing function ends the reduction early by returning a
+    // MalReduced, e.g., (take n) does so after n inputs.
+
+    // The collection is passed in coll[0], which is cleared before the loop,
+    // like the sequence a count walks (see MalLazySeq). Only the loop refers
+    // to a lazy sequence then, so it need not fit into memory, as long as
+    // the caller has handed it over as well. Every element takes a step of
+    // the budget.
+
+    /**
+     * Reduce the elements of the collection in coll[0] with rf, starting
+     * from init. A MalReduced returned by rf ends the loop, and its value
+     * is returned.
+     */
+    static MalType reduce(MalFunction rf, MalType init, MalType[] coll) throws MalException {
+        MalType result = init;
+
+        if (coll[0] == types.Nil) return result;
+
+        MalSequence seq = coll[0].assertType(MalSequence.class);
+        coll[0] = null;
+
+        if (seq instanceof MalList || seq instanceof MalLazySeq) {
+            for (; !seq.isEmpty(); seq = seq.rest()) {
+                budget.step();
+                result = rf.apply2(result, seq.first());
+                if (result instanceof MalReduced) return ((MalReduced)result).value;
+            }
+            return result;
+        }
+
+        for (MalType item : seq) {
+            budget.step();
+            result = rf.apply2(result, item);
+            if (result instanceof MalReduced) return ((MalReduced)result).value;
+        }
+        return result;
+    }
+
+    /**
+     * Reduce the elements of the collection in coll[0] with f, starting
+     * from the first one. The result for an empty collection is that of
+     * calling f without arguments.
+     */
+    static MalType reduce(MalFunction f, MalType[] coll) throws MalException {
+        if (coll[0] == types.Nil) return f.apply0();
+
+        MalSequence seq = coll[0].assertType(MalSequence.class);
+        coll[0] = null;
+
+        if (seq instanceof MalVector) {
+            Iterator<MalType> items = seq.iterator();
+            if (!items.hasNext()) return f.apply0();
+
+            MalType result = items.next();
+            while (items.hasNext()) {
+                budget.step();
+                result = f.apply2(result, items.next());
+                if (result instanceof MalReduced) return ((MalReduced)result).value;
+            }
+            return result;
+        }
+
+        if (seq.isEmpty()) return f.apply0();
+        MalType first = seq.first();
+        coll[0] = seq.rest();
+        seq = null;
+        return reduce(f, first, coll);
+    }
+
+    /**
+     * Reduce the elements of the collection in coll[0] with f transformed
+     * by xform, starting from init, and complete the result.
+     */
+    static MalType transduce(MalFunction xform, MalFunction f, MalType init, MalType[] coll) throws MalException {
+        MalFunction rf = xform.apply1(f).assertType(MalFunction.class);
+        return rf.apply1(reduce(rf, init, coll));
+    }
+
+    static MalReduced ensureReduced(MalType result) {
+        if (result instanceof MalReduced) return (MalReduced)result;
+        return new MalReduced(result);
+    }
+
+    /**
+     * A transformer of reducing functions.
+     */
+    abstract static class Transducer extends MalFunction {
+        abstract MalFunction transform(MalFunction rf);
+
+        @Override
+        public MalType apply(MalList args) throws MalException {
+            if (args.size() != 1) throw new MalException("Wrong number of arguments: required 1, received " + args.size() + ".");
+            return apply1(args.first());
+        }
+
+        @Override
+        public MalType apply1(MalType rf) throws MalException {
+            return transform(rf.assertType(MalFunction.class));
+        }
+    }
+
+    /**
+     * A reducing function made by a transducer from rf. It only has to
+     * implement the step; the initial result and the completion are those
+     * of rf.
+     */
+    abstract static class Step extends MalFunction {
+        final MalFunction rf;
+
+        Step(MalFunction rf) {
+            this.rf = rf;
+        }
+
+        @Override
+        public MalType apply(MalList args) throws MalException {
+            switch (args.size()) {
+            case 0: return apply0();
+            case 1: return apply1(args.first());
+            case 2: return apply2(args.first(), args.rest().first());
+            default: throw new MalException("Wrong number of arguments: required 0-2, received " + args.size() + ".");
+            }
+        }
+
+        @Override
+        public MalType apply0() throws MalException {
+            return rf.apply0();
+        }
+
+        @Override
+        public MalType apply1(MalType result) throws MalException {
+            return rf.apply1(result);
+        }
+
+        @Override
+        public abstract MalType apply2(MalType result, MalType input) throws MalException;
+    }
+
+    static Transducer map(MalFunction f) {
+        return new Transducer() {
+            @Override
+            MalFunction transform(MalFunction rf) {
+                return new Step(rf) {
+                    @Override
+                    public MalType apply2(MalType result, MalType input) throws MalException {
+                        return rf.apply2(result, f.apply1(input));
+                    }
+                };
+            }
+        };
+    }
+
+    static Transducer filter(MalFunction pred) {
+        return new Transducer() {
+            @Override
+            MalFunction transform(MalFunction rf) {
+                return new Step(rf) {
+                    @Override
+                    public MalType apply2(MalType result, MalType input) throws MalException {
+                        MalType test = pred.apply1(input);
+                        if (test == types.Nil || test == types.False) return result;
+                        return rf.apply2(result, input);
+                    }
+                };
+            }
+        };
+    }
+
+    // The count of inputs left is kept in the reducing function, so each
+    // reduction with it starts anew.
+    static Transducer take(int n) {
+        return new Transducer() {
+            @Override
+            MalFunction transform(MalFunction rf) {
+                return new Step(rf) {
+                    int remaining = n;
+
+                    @Override
+                    public MalType apply2(MalType result, MalType input) throws MalException {
+                        if (remaining > 0) result = rf.apply2(result, input);
+                        remaining--;
+                        if (remaining <= 0) return ensureReduced(result);
+                        return result;
+                    }
+                };
+            }
+        };
+    }
+
+    static Transducer drop(int n) {
+        return new Transducer() {
+            @Override
+            MalFunction transform(MalFunction rf) {
+                return new Step(rf) {
+                    int remaining = n;
+
+                    @Override
+                    public MalType apply2(MalType result, MalType input) throws MalException {
+                        if (remaining > 0) {
+                            remaining--;
+                            return result;
+                        }
+                        return rf.apply2(result, input);
+                    }
+                };
+            }
+        };
+    }
+}
@@ -1,18 +1,27 @@
 package mal;
 
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.math.BigInteger;
+import java.util.AbstractList;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
 import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
 import java.util.StringJoiner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
 
 import mal.env.Env;
 
 public class types {
     public abstract static class MalType {
-        Object jValue = null; // The Java value representing the MalType.
-        String type = "type"; // The Mal name of the type.
-
         /**
          * Return the Java value of a MalType.
          */
@@ -24,8 +33,11 @@ public class types {
             return pr_str(true);
         }
 
-        final public String getType() {
-            return type;
+        /**
+         * Return the Mal name of the type.
+         */
+        public String getType() {
+            return "type";
         }
 
         final public <T extends MalType> T assertType(Class<T> type) throws MalException {
@@ -42,22 +54,67 @@ public class types {
         }
     }
 
-    public static class MalInt extends MalType implements Comparable<MalInt> {
-        Integer jValue;
+    // The numeric tower: fixnums (MalInt), which hold a long, integers that
+    // don't fit into a long (MalBigInt) and doubles (MalDouble). Arithmetic
+    // on them is implemented in numbers.
+
+    public static abstract class MalNumber extends MalType {
+        abstract double doubleValue();
+    }
+
+    public static class MalInt extends MalNumber implements Comparable<MalInt> {
+        // Fixnums from CACHE_LOW to CACHE_HIGH are preallocated.
+        private static final int CACHE_LOW = -128;
+        private static final int CACHE_HIGH = 1023;
+        private static final MalInt[] cache = new MalInt[CACHE_HIGH - CACHE_LOW + 1];
+
+        static {
+            for (int i = 0; i < cache.length; i++) {
+                cache[i] = new MalInt(CACHE_LOW + i);
+            }
+        }
+
+        final long value;
+
+        public MalInt(long value) {
+            this.value = value;
+        }
 
-        public MalInt(int value) {
-            this.jValue = value;
-            type = "int";
+        /**
+         * Return a fixnum with the given value, reusing a cached one for
+         * small values.
+         */
+        public static MalInt valueOf(long value) {
+            if (value >= CACHE_LOW && value <= CACHE_HIGH) return cache[(int)value - CACHE_LOW];
+            return new MalInt(value);
         }
 
         @Override
-        public Integer getJValue() {
-            return jValue;
+        public String getType() {
+            return "int";
+        }
+
+        @Override
+        public Long getJValue() {
+            return value;
+        }
+
+        public long longValue() {
+            return value;
+        }
+
+        @Override
+        double doubleValue() {
+            return value;
+        }
+
+        BigInteger bigIntegerValue() {
+            return BigInteger.valueOf(value);
         }
 
         @Override
         public String pr_str(boolean readably) {
-            return Integer.toString(jValue);
+            return Long.toString(value);
         }
 
         @Override
@@ -66,12 +123,12 @@ public class types {
             if (!(obj instanceof MalInt)) return false;
 
             MalInt that = (MalInt)obj;
-            return (this.jValue == that.jValue);
+            return this.value == that.value;
         }
 
         @Override
         public int hashCode() {
-            return jValue.hashCode();
+            return Long.hashCode(value);
         }
 
         @Override
@@ -79,53 +136,118 @@ public class types {
             //returns -1 if "this" object is less than "that" object
             //returns 0 if they are equal
             //returns 1 if "this" object is greater than "that" object
-            return this.jValue.compareTo(that.jValue);
+            return Long.compare(this.value, that.value);
+        }
+    }
+
+    // An integer outside of the range of a long. Arithmetic never returns a
+    // MalBigInt whose value fits into a MalInt, so that every integer has
+    // exactly one representation.
+    public static class MalBigInt extends MalNumber {
+        final BigInteger value;
+
+        public MalBigInt(BigInteger value) {
+            this.value = value;
         }
 
-        boolean isGreaterThan(MalInt that) {
-            return this.compareTo(that) > 0;
+        @Override
+        public String getType() {
+            return "bigint";
+        }
+
+        @Override
+        public BigInteger getJValue() {
+            return value;
         }
 
-        boolean isGreaterThanOrEqual(MalInt that) {
-            return this.compareTo(that) >= 0;
+        @Override
+        double doubleValue() {
+            return value.doubleValue();
+        }
+
+        BigInteger bigIntegerValue() {
+            return value;
         }
 
-        boolean isLessThan(MalInt that) {
-            return this.compareTo(that) < 0;
+        @Override
+        public String pr_str(boolean readably) {
+            return value.toString();
         }
 
-        boolean isLessThanOrEqual(MalInt that) {
-            return this.compareTo(that) <= 0;
+        @Override
+        public int hashCode() {
+            return value.hashCode();
         }
     }
 
-    public static abstract class MalSequence extends MalType {
-        List<MalType> jValue;
+    public static class MalDouble extends MalNumber {
+        final double value;
+
+        public MalDouble(double value) {
+            this.value = value;
+        }
 
         @Override
-        public List<MalType> getJValue() {
-            return jValue;
+        public String getType() {
+            return "double";
         }
 
-        public int size() {
-            return jValue.size();
+        @Override
+        public Double getJValue() {
+            return value;
         }
 
-        public void add(MalType e) {
-            jValue.add(e);
+        @Override
+        double doubleValue() {
+            return value;
         }
 
-        public void addAll(MalSequence elems) {
-            jValue.addAll(elems.getJValue());
+        @Override
+        public String pr_str(boolean readably) {
+            return Double.toString(value);
         }
 
-        public MalType get(int i) {
-            return jValue.get(i);
+        @Override
+        public int hashCode() {
+            return Double.hashCode(value);
         }
+    }
+
+    public static abstract class MalSequence extends MalType implements Iterable<MalType> {
+        /**
+         * Return the elements as a Java list, which must not be modified.
+         */
+        @Override
+        public abstract List<MalType> getJValue();
+
+        public abstract int size();
+
+        public abstract MalType get(int i);
 
         // Note: subList always returns a list, even when called on a vector.
-        public MalList subList(int beg, int end) {
-            return new MalList(jValue.subList(beg, end));
+        public abstract MalList subList(int beg, int end);
+
+        public boolean isEmpty() throws MalException {
+            return size() == 0;
+        }
+
+        /**
+         * Return the first element, or nil if the sequence is empty.
+         */
+        public MalType first() throws MalException {
+            return isEmpty() ? Nil : get(0);
+        }
+
+        /**
+         * Return the sequence without its first element, or an empty one.
+         */
+        public MalSequence rest() throws MalException {
+            return isEmpty() ? new MalList() : subList(1, size());
+        }
+
+        @Override
+        public Iterator<MalType> iterator() {
+            return getJValue().iterator();
         }
 
         @Override
@@ -136,39 +258,183 @@ public class types {
             MalSequence that = (MalSequence)obj;
             if (that.size() != this.size()) return false;
 
-            for (int i=0; i<this.size(); i++) {
-                if (!this.get(i).equals(that.get(i))) return false;
+            Iterator<MalType> these = this.iterator();
+            Iterator<MalType> those = that.iterator();
+            while (these.hasNext()) {
+                if (!these.next().equals(those.next())) return false;
             }
             return true;
         }
 
+        // Computed like that of a java.util.List, so a list and a vector
+        // with the same elements, which are equal, have the same hash code.
+        @Override
+        public int hashCode() {
+            int hash = 1;
+            for (MalType item : this) {
+                hash = 31 * hash + item.hashCode();
+            }
+            return hash;
+        }
+
         public int length() {
-            return jValue.size();
+            return size();
         }
     }
 
+    /**
+     * A persistent list.
+     * <p>
+     * A list is a chain of cells, each of which holds an element and the rest
+     * of the list, and caches its length. Lists are never modified, so they
+     * share their tails: first, rest, cons and size take constant time.
+     */
     public static class MalList extends MalSequence {
+        private final MalType first;
+        private final MalList rest;
+        private final int count;
+
         public MalList() {
-            this.jValue = new LinkedList<MalType>();
-            type = "list";
+            this.first = null;
+            this.rest = null;
+            this.count = 0;
+        }
+
+        public MalList(MalType first, MalList rest) {
+            this.first = first;
+            this.rest = rest;
+            this.count = rest.count + 1;
         }
 
         public MalList(MalType item) {
-            this.jValue = new LinkedList<MalType>();
-            type = "list";
-            this.jValue.add(item);
+            this(item, new MalList());
         }
 
         public MalList(List<MalType> items) {
-            this.jValue = items;
-            type = "list";
+            this(items.toArray(new MalType[items.size()]), 0, items.size());
+        }
+
+        public MalList(MalType[] items, int beg, int end) {
+            MalList list = new MalList();
+            for (int i = end - 1; i > beg; i--) {
+                list = new MalList(items[i], list);
+            }
+
+            if (beg < end) {
+                this.first = items[beg];
+                this.rest = list;
+                this.count = list.count + 1;
+            } else {
+                this.first = null;
+                this.rest = null;
+                this.count = 0;
+            }
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return count == 0;
+        }
+
+        @Override
+        public MalType first() {
+            return count == 0 ? Nil : first;
+        }
+
+        @Override
+        public MalList rest() {
+            return count == 0 ? this : rest;
+        }
+
+        public MalList cons(MalType item) {
+            return new MalList(item, this);
+        }
+
+        // The list without its first n elements.
+        public MalList drop(int n) {
+            MalList list = this;
+            for (int i = 0; i < n && list.count > 0; i++) {
+                list = list.rest;
+            }
+            return list;
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public MalType get(int i) {
+            if (i < 0 || i >= count) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+            return drop(i).first;
+        }
+
+        @Override
+        public MalList subList(int beg, int end) {
+            if (beg < 0 || end > count || beg > end) throw new IndexOutOfBoundsException("fromIndex: " + beg + ", toIndex: " + end + ", size: " + count);
+
+            MalList tail = drop(beg);
+            if (end == count) return tail;
+
+            MalType[] items = new MalType[end - beg];
+            for (int i = 0; i < items.length; i++) {
+                items[i] = tail.first;
+                tail = tail.rest;
+            }
+            return new MalList(items, 0, items.length);
+        }
+
+        @Override
+        public Iterator<MalType> iterator() {
+            return new Iterator<MalType>() {
+                MalList next = MalList.this;
+
+                @Override
+                public boolean hasNext() {
+                    return next.count > 0;
+                }
+
+                @Override
+                public MalType next() {
+                    if (next.count == 0) throw new NoSuchElementException();
+                    MalType item = next.first;
+                    next = next.rest;
+                    return item;
+                }
+            };
+        }
+
+        @Override
+        public String getType() {
+            return "list";
+        }
+
+        @Override
+        public List<MalType> getJValue() {
+            return new AbstractList<MalType>() {
+                @Override
+                public MalType get(int i) {
+                    return MalList.this.get(i);
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+
+                @Override
+                public Iterator<MalType> iterator() {
+                    return MalList.this.iterator();
+                }
+            };
         }
 
         @Override
         public String pr_str(boolean readably) {
             StringJoiner result = new StringJoiner(" ", "(", ")");
 
-            for(MalType item : jValue) {
+            for (MalType item : this) {
                 result.add(item.pr_str(readably));
             }
 
@@ -176,18 +442,316 @@ public class types {
         }
     }
 
-    private static class MalNil extends MalType {
+    /**
+     * A lazy sequence.
+     * <p>
+     * A lazy sequence starts out with a thunk, which is called the first time
+     * the sequence is looked at. It returns the sequence's value: nil or
+     * another sequence, which may itself be lazy. Its first element and rest
+     * are then cached, and the thunk is dropped. The rest is typically
+     * another lazy sequence, so that the elements are only computed as they
+     * are reached, and a sequence that nothing refers to any longer can be
+     * collected while the following elements are computed.
+     * <p>
+     * Operations that need all elements, such as size, pr_str or equals,
+     * realize the whole sequence, and don't return for an infinite one.
+     */
+    public static class MalLazySeq extends MalSequence {
+        public interface Thunk {
+            MalType force() throws MalException;
+        }
+
+        // null once the sequence is realized.
+        private Thunk thunk;
+        private MalType first;
+        // The rest, a MalList or a MalLazySeq, or null if the sequence is
+        // empty.
+        private MalSequence rest;
+
+        public MalLazySeq(Thunk thunk) {
+            this.thunk = thunk;
+        }
 
-        public MalNil() {
-            super();
-            type = "symbol";
+        /**
+         * Make a realized sequence of first followed by rest.
+         */
+        public MalLazySeq(MalType first, MalSequence rest) {
+            this.first = first;
+            this.rest = rest;
+        }
+
+        /**
+         * Make an infinite sequence of item.
+         */
+        public static MalLazySeq repeat(MalType item) {
+            MalLazySeq seq = new MalLazySeq(item, null);
+            seq.rest = seq;
+            return seq;
+        }
+
+        private void realize() throws MalException {
+            if (thunk == null) return;
+            budget.step();
+
+            // A thunk that returns an unrealized lazy sequence is followed
+            // by calling that sequence's thunk here, rather than by
+            // realizing it, so that a long chain of them, e.g., from a
+            // filter that skips many elements, doesn't fill the stack.
+            //
+            // Each thunk is dropped before it is called, since it refers to
+            // the input where it starts, which would otherwise keep every
+            // element skipped along the chain in memory. If one fails, this
+            // sequence takes it over, so that realizing it again resumes
+            // from there.
+            Thunk pending = thunk;
+            thunk = null;
+            MalType value;
+            try {
+                value = pending.force();
+                while (value instanceof MalLazySeq && ((MalLazySeq)value).thunk != null) {
+                    MalLazySeq seq = (MalLazySeq)value;
+                    pending = seq.thunk;
+                    budget.step();
+                    value = pending.force();
+                    MalType result = value;
+                    seq.thunk = () -> result;
+                }
+            } catch(MalException | RuntimeException ex) {
+                thunk = pending;
+                throw ex;
+            }
+
+            if (value instanceof MalLazySeq) {
+                MalLazySeq seq = (MalLazySeq)value;
+                first = seq.first;
+                rest = seq.rest;
+            } else if (value instanceof MalVector) {
+                MalList list = new MalList(((MalVector)value).getJValue());
+                if (list.size() > 0) {
+                    first = list.first();
+                    rest = list.rest();
+                }
+            } else if (value instanceof MalList) {
+                MalList list = (MalList)value;
+                if (list.size() > 0) {
+                    first = list.first();
+                    rest = list.rest();
+                }
+            } else if (value != Nil) {
+                throw new MalException("Wrong argument type: expected sequence, received " + value.getClass().getSimpleName() + ".");
+            }
+        }
+
+        @Override
+        public boolean isEmpty() throws MalException {
+            realize();
+            return rest == null;
+        }
+
+        @Override
+        public MalType first() throws MalException {
+            realize();
+            return rest == null ? Nil : first;
+        }
+
+        @Override
+        public MalSequence rest() throws MalException {
+            realize();
+            return rest == null ? new MalList() : rest;
+        }
+
+        // The static walks take the sequence out of holder[0], clearing it,
+        // like the VM takes the arguments of a builtin off its stack. Only
+        // the loop refers to the sequence then, and it moves along, so a
+        // builtin that hands over its argument this way doesn't keep the
+        // elements walked in memory.
+
+        /**
+         * Return the sequence in holder[0] without its first n elements.
+         */
+        public static MalSequence drop(MalType[] holder, int n) throws MalException {
+            MalSequence seq = (MalSequence)holder[0];
+            holder[0] = null;
+            for (int i = 0; i < n && !seq.isEmpty(); i++) {
+                budget.step();
+                seq = seq.rest();
+            }
+            return seq;
+        }
+
+        /**
+         * Return the number of elements of the sequence in holder[0].
+         */
+        public static int count(MalType[] holder) throws MalException {
+            MalSequence seq = (MalSequence)holder[0];
+            holder[0] = null;
+            int count = 0;
+            for (; !seq.isEmpty(); seq = seq.rest()) {
+                budget.step();
+                count++;
+            }
+            return count;
+        }
+
+        // The same for this sequence, which the caller refers to anyway.
+
+        public MalSequence drop(int n) throws MalException {
+            return drop(new MalType[] { this }, n);
+        }
+
+        public int count() throws MalException {
+            return count(new MalType[] { this });
+        }
+
+        /**
+         * Return the elements as a list.
+         */
+        public MalList toList() throws MalException {
+            ArrayList<MalType> items = new ArrayList<>();
+            for (MalSequence seq = this; !seq.isEmpty(); seq = seq.rest()) {
+                budget.step();
+                items.add(seq.first());
+            }
+            return new MalList(items);
+        }
+
+        // The following methods are declared without a MalException, so
+        // they wrap one thrown by a thunk in a LazySeqException.
+
+        @Override
+        public int size() {
+            try {
+                return count();
+            } catch(MalException ex) {
+                throw new LazySeqException(ex);
+            }
+        }
+
+        @Override
+        public MalType get(int i) {
+            try {
+                MalSequence seq = i < 0 ? this : drop(i);
+                if (i < 0 || seq.isEmpty()) throw new IndexOutOfBoundsException("Index: " + i);
+                return seq.first();
+            } catch(MalException ex) {
+                throw new LazySeqException(ex);
+            }
+        }
+
+        @Override
+        public MalList subList(int beg, int end) {
+            try {
+                ArrayList<MalType> items = new ArrayList<>();
+                MalSequence seq = drop(beg);
+                for (int i = beg; i < end; i++) {
+                    if (seq.isEmpty()) throw new IndexOutOfBoundsException("toIndex: " + end);
+                    items.add(seq.first());
+                    seq = seq.rest();
+                }
+                return new MalList(items);
+            } catch(MalException ex) {
+                throw new LazySeqException(ex);
+            }
+        }
+
+        @Override
+        public Iterator<MalType> iterator() {
+            return new Iterator<MalType>() {
+                MalSequence next = MalLazySeq.this;
+
+                @Override
+                public boolean hasNext() {
+                    try {
+                        return !next.isEmpty();
+                    } catch(MalException ex) {
+                        throw new LazySeqException(ex);
+                    }
+                }
+
+                @Override
+                public MalType next() {
+                    if (!hasNext()) throw new NoSuchElementException();
+                    try {
+                        budget.step();
+                        MalType item = next.first();
+                        next = next.rest();
+                        return item;
+                    } catch(MalException ex) {
+                        throw new LazySeqException(ex);
+                    }
+                }
+            };
+        }
+
+        @Override
+        public List<MalType> getJValue() {
+            return new AbstractList<MalType>() {
+                @Override
+                public MalType get(int i) {
+                    return MalLazySeq.this.get(i);
+                }
+
+                @Override
+                public int size() {
+                    return MalLazySeq.this.size();
+                }
+
+                @Override
+                public Iterator<MalType> iterator() {
+                    return MalLazySeq.this.iterator();
+                }
+            };
+        }
+
+        @Override
+        public String getType() {
+            return "lazy-seq";
         }
 
+        @Override
+        public String pr_str(boolean readably) {
+            StringJoiner result = new StringJoiner(" ", "(", ")");
+
+            for (MalType item : this) {
+                result.add(item.pr_str(readably));
+            }
+
+            return result.toString();
+        }
+    }
+
+    // A MalException thrown while realizing a lazy sequence in a method that
+    // cannot throw one, such as pr_str. Handlers of MalExceptions catch it
+    // as well, and unwrap it.
+    public static class LazySeqException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+
+        LazySeqException(MalException cause) {
+            super(cause);
+        }
+
+        /**
+         * Return the MalException caught as ex, which is either one or a
+         * LazySeqException.
+         */
+        public static MalException unwrap(Exception ex) {
+            if (ex instanceof LazySeqException) return (MalException)ex.getCause();
+            return (MalException)ex;
+        }
+    }
+
+    private static class MalNil extends MalType {
+
         @Override
         public String pr_str(boolean readably) {
             return "nil";
         }
 
+        @Override
+        public String getType() {
+            return "symbol";
+        }
+
         @Override
         public Object getJValue() {
             return null;
@@ -196,22 +760,227 @@ public class types {
 
     public static final MalNil Nil = new MalNil();
 
+    /**
+     * A persistent vector.
+     * <p>
+     * The elements are kept in a trie of arrays of 32 elements each, the
+     * leaves, and of arrays of 32 subtries, except for the last up to 32
+     * elements, which are kept in the tail. The index of an element selects
+     * the path through the trie five bits at a time. A vector is never
+     * modified: conj and assoc copy the path to the element they change, and
+     * share the rest of the trie. As the trie is at most seven levels deep,
+     * get, conj and assoc take practically constant time.
+     */
     public static class MalVector extends MalSequence {
+        private static final int BITS = 5;
+        private static final int WIDTH = 1 << BITS;
+        private static final int MASK = WIDTH - 1;
+        private static final Object[] EMPTY = new Object[0];
+
+        private final int count;
+        // The depth of the trie in bits, i.e., BITS times the number of
+        // levels above the leaves.
+        private final int shift;
+        private final Object[] root;
+        private final Object[] tail;
+
         public MalVector() {
-            this.jValue = new ArrayList<MalType>();
-            type = "vector";
+            this(0, BITS, new Object[WIDTH], EMPTY);
         }
 
         public MalVector(List<MalType> items) {
-            this.jValue = items;
-            type = "vector";
+            this(items.toArray(new MalType[items.size()]));
+        }
+
+        public MalVector(MalType[] items) {
+            int count = items.length;
+            int tailOffset = tailOffset(count);
+
+            // Fill the leaves, and then group each level into the nodes of
+            // the next one until they fit into the root.
+            Object[] nodes = new Object[tailOffset / WIDTH];
+            for (int i = 0; i < nodes.length; i++) {
+                nodes[i] = Arrays.copyOfRange(items, i * WIDTH, (i + 1) * WIDTH, Object[].class);
+            }
+            int shift = BITS;
+            while (nodes.length > WIDTH) {
+                Object[] parents = new Object[(nodes.length + MASK) / WIDTH];
+                for (int i = 0; i < parents.length; i++) {
+                    parents[i] = Arrays.copyOfRange(nodes, i * WIDTH, (i + 1) * WIDTH);
+                }
+                nodes = parents;
+                shift += BITS;
+            }
+
+            this.count = count;
+            this.shift = shift;
+            this.root = Arrays.copyOf(nodes, WIDTH);
+            this.tail = Arrays.copyOfRange(items, tailOffset, count, Object[].class);
+        }
+
+        private MalVector(int count, int shift, Object[] root, Object[] tail) {
+            this.count = count;
+            this.shift = shift;
+            this.root = root;
+            this.tail = tail;
+        }
+
+        // The index of the first element in the tail.
+        private static int tailOffset(int count) {
+            return count == 0 ? 0 : ((count - 1) >>> BITS) << BITS;
+        }
+
+        // The leaf or tail that holds element i.
+        private Object[] arrayFor(int i) {
+            if (i >= tailOffset(count)) return tail;
+
+            Object[] node = root;
+            for (int level = shift; level > 0; level -= BITS) {
+                node = (Object[])node[(i >>> level) & MASK];
+            }
+            return node;
+        }
+
+        @Override
+        public String getType() {
+            return "vector";
+        }
+
+        @Override
+        public List<MalType> getJValue() {
+            return new AbstractList<MalType>() {
+                @Override
+                public MalType get(int i) {
+                    return MalVector.this.get(i);
+                }
+
+                @Override
+                public int size() {
+                    return count;
+                }
+            };
+        }
+
+        @Override
+        public int size() {
+            return count;
+        }
+
+        @Override
+        public MalType get(int i) {
+            if (i < 0 || i >= count) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+            return (MalType)arrayFor(i)[i & MASK];
+        }
+
+        /**
+         * Return the vector with item added at the end.
+         */
+        public MalVector conj(MalType item) {
+            if (tail.length < WIDTH) {
+                Object[] newTail = Arrays.copyOf(tail, tail.length + 1);
+                newTail[tail.length] = item;
+                return new MalVector(count + 1, shift, root, newTail);
+            }
+
+            // The tail is full: it becomes a leaf of the trie. If the trie
+            // is full as well, it gets another level.
+            Object[] newRoot;
+            int newShift = shift;
+            if ((count >>> BITS) > (1 << shift)) {
+                newRoot = new Object[WIDTH];
+                newRoot[0] = root;
+                newRoot[1] = newPath(shift, tail);
+                newShift += BITS;
+            } else {
+                newRoot = pushTail(shift, root, tail);
+            }
+            return new MalVector(count + 1, newShift, newRoot, new Object[] { item });
+        }
+
+        private Object[] pushTail(int level, Object[] parent, Object[] leaf) {
+            int i = ((count - 1) >>> level) & MASK;
+            Object[] node = parent.clone();
+            if (level == BITS) {
+                node[i] = leaf;
+            } else {
+                Object[] child = (Object[])parent[i];
+                node[i] = child != null ? pushTail(level - BITS, child, leaf) : newPath(level - BITS, leaf);
+            }
+            return node;
+        }
+
+        private static Object[] newPath(int level, Object[] leaf) {
+            if (level == 0) return leaf;
+
+            Object[] node = new Object[WIDTH];
+            node[0] = newPath(level - BITS, leaf);
+            return node;
+        }
+
+        /**
+         * Return the vector with element i replaced by item. If i is the
+         * size of the vector, item is added at the end.
+         */
+        public MalVector assoc(int i, MalType item) {
+            if (i == count) return conj(item);
+            if (i < 0 || i > count) throw new IndexOutOfBoundsException("Index: " + i + ", Size: " + count);
+
+            if (i >= tailOffset(count)) {
+                Object[] newTail = tail.clone();
+                newTail[i & MASK] = item;
+                return new MalVector(count, shift, root, newTail);
+            }
+            return new MalVector(count, shift, assoc(shift, root, i, item), tail);
+        }
+
+        private static Object[] assoc(int level, Object[] parent, int i, MalType item) {
+            Object[] node = parent.clone();
+            if (level == 0) {
+                node[i & MASK] = item;
+            } else {
+                int j = (i >>> level) & MASK;
+                node[j] = assoc(level - BITS, (Object[])parent[j], i, item);
+            }
+            return node;
+        }
+
+        @Override
+        public Iterator<MalType> iterator() {
+            return new Iterator<MalType>() {
+                int i = 0;
+                Object[] array = EMPTY;
+
+                @Override
+                public boolean hasNext() {
+                    return i < count;
+                }
+
+                @Override
+                public MalType next() {
+                    if (i >= count) throw new NoSuchElementException();
+                    // Look up each leaf only once.
+                    if ((i & MASK) == 0) array = arrayFor(i);
+                    return (MalType)array[i++ & MASK];
+                }
+            };
+        }
+
+        @Override
+        public MalList subList(int beg, int end) {
+            if (beg < 0 || end > count || beg > end) throw new IndexOutOfBoundsException("fromIndex: " + beg + ", toIndex: " + end + ", size: " + count);
+
+            MalList result = new MalList();
+            for (int i = end - 1; i >= beg; i--) {
+                result = result.cons(get(i));
+            }
+            return result;
         }
 
         @Override
         public String pr_str(boolean readably) {
             StringJoiner result = new StringJoiner(" ", "[", "]");
 
-            for(MalType item : jValue) {
+            for (MalType item : this) {
                 result.add(item.pr_str(readably));
             }
 
@@ -219,65 +988,224 @@ public class types {
         }
 
         public MalVector subVector(int beg, int end) {
-            return new MalVector(jValue.subList(beg, end));
+            return new MalVector(getJValue().subList(beg, end));
         }
     }
 
+    /**
+     * A persistent hash map.
+     * <p>
+     * A map of up to ARRAY_MAP_SIZE entries is an array map: its keys and
+     * values are kept in a flat array, in the order they were added, and
+     * looked up by a linear scan, which for a few keys is faster than
+     * hashing and takes a fraction of the memory. Adding another entry turns
+     * it into a hash map for good.
+     * <p>
+     * The entries of a hash map are kept in a hash array mapped trie. Each
+     * node covers five bits of the hash codes of its keys and has a bitmap
+     * of the values of those bits that occur; it holds a key and a value, or
+     * a subtrie, for each of them, in a compact array. Keys whose hash codes
+     * are equal share a collision node. A map is never modified: assoc and
+     * dissoc copy the path to the entry they change, and share the rest of
+     * the trie, so they take O(log32 n) time.
+     */
     public static class MalHash extends MalType {
-        HashMap<MalType,MalType> jValue;
+        private static final int ARRAY_MAP_SIZE = 8;
+        private static final Object[] EMPTY = new Object[0];
+
+        private final int count;
+        // The keys and values of an array map, or null.
+        private final Object[] array;
+        // The trie of a hash map, or null.
+        private final HashNode root;
 
         public MalHash() {
-            jValue = new HashMap<MalType,MalType>();
-            type = "hash";
+            this(0, EMPTY, null);
         }
 
-        public MalHash(HashMap<MalType,MalType> h) {
-            jValue = h;
-            type = "hash";
+        private MalHash(int count, Object[] array, HashNode root) {
+            this.count = count;
+            this.array = array;
+            this.root = root;
         }
 
-        public void put(MalType k, MalType v) {
-            jValue.put(k, v);
+        public int size() {
+            return count;
         }
 
-        public MalType get(MalType k) {
+        // The index of k in the array of an array map, or -1.
+        private int indexOf(MalType k) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == k || k.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        // Return the value of k, or null.
+        private MalType find(MalType k) {
+            if (array != null) {
+                int i = indexOf(k);
+                return i < 0 ? null : (MalType)array[i+1];
+            }
+            return root.find(0, k.hashCode(), k);
+        }
+
+        public boolean containsKey(MalType k) {
+            return find(k) != null;
+        }
 
-            MalType val = jValue.get(k);
+        public MalType get(MalType k) {
+            MalType val = find(k);
             if (val == null) return Nil;
             else return val;
         }
 
+        /**
+         * Return the map with k mapped to v.
+         */
+        public MalHash assoc(MalType k, MalType v) {
+            HashNode node = root;
+            if (array != null) {
+                int i = indexOf(k);
+                if (i >= 0) {
+                    if (array[i+1] == v) return this;
+                    Object[] newArray = array.clone();
+                    newArray[i+1] = v;
+                    return new MalHash(count, newArray, null);
+                }
+                if (count < ARRAY_MAP_SIZE) {
+                    Object[] newArray = Arrays.copyOf(array, array.length + 2);
+                    newArray[array.length] = k;
+                    newArray[array.length+1] = v;
+                    return new MalHash(count + 1, newArray, null);
+                }
+
+                // Move the entries into a trie.
+                boolean[] added = new boolean[1];
+                node = BitmapNode.EMPTY;
+                for (int j = 0; j < array.length; j += 2) {
+                    MalType key = (MalType)array[j];
+                    node = node.assoc(0, key.hashCode(), key, (MalType)array[j+1], added);
+                }
+            }
+
+            boolean[] added = new boolean[1];
+            HashNode newRoot = node.assoc(0, k.hashCode(), k, v, added);
+            if (newRoot == root) return this;
+            return new MalHash(added[0] ? count + 1 : count, null, newRoot);
+        }
+
+        /**
+         * Return the map without the entry for k.
+         */
+        public MalHash dissoc(MalType k) {
+            if (array != null) {
+                int i = indexOf(k);
+                if (i < 0) return this;
+                Object[] newArray = new Object[array.length - 2];
+                System.arraycopy(array, 0, newArray, 0, i);
+                System.arraycopy(array, i+2, newArray, i, newArray.length - i);
+                return new MalHash(count - 1, newArray, null);
+            }
+
+            HashNode newRoot = root.without(0, k.hashCode(), k);
+            if (newRoot == root) return this;
+            if (newRoot == null) return new MalHash();
+            return new MalHash(count - 1, null, newRoot);
+        }
+
         public MalList keys() {
-            LinkedList<MalType> keysList = new LinkedList<>(jValue.keySet());
-            return new MalList(keysList);
+            MalType[] items = new MalType[count];
+            int i = 0;
+            for (Map.Entry<MalType,MalType> entry : getJValue().entrySet()) {
+                items[i++] = entry.getKey();
+            }
+            return new MalList(items, 0, count);
         }
 
         public MalList values() {
-            LinkedList<MalType> keysList = new LinkedList<>(jValue.values());
-            return new MalList(keysList);
+            MalType[] items = new MalType[count];
+            int i = 0;
+            for (Map.Entry<MalType,MalType> entry : getJValue().entrySet()) {
+                items[i++] = entry.getValue();
+            }
+            return new MalList(items, 0, count);
         }
 
-        public MalType delete(MalType k) {
-            jValue.remove(k);
-            return null;
+        /**
+         * Return the entries as a Java map, which cannot be modified.
+         */
+        @Override
+        public String getType() {
+            return "hash";
         }
 
-        public MalHash copy() {
-            HashMap<MalType,MalType> newMap = (HashMap<MalType,MalType>)this.jValue.clone();
+        @Override
+        public Map<MalType,MalType> getJValue() {
+            return new AbstractMap<MalType,MalType>() {
+                @Override
+                public Set<Map.Entry<MalType,MalType>> entrySet() {
+                    return new AbstractSet<Map.Entry<MalType,MalType>>() {
+                        @Override
+                        public Iterator<Map.Entry<MalType,MalType>> iterator() {
+                            List<Map.Entry<MalType,MalType>> entries = new ArrayList<>(count);
+                            if (array != null) {
+                                for (int i = 0; i < array.length; i += 2) {
+                                    entries.add(new AbstractMap.SimpleImmutableEntry<>((MalType)array[i], (MalType)array[i+1]));
+                                }
+                            } else {
+                                root.collect(entries);
+                            }
+                            return Collections.unmodifiableList(entries).iterator();
+                        }
 
-            return new MalHash(newMap);
+                        @Override
+                        public int size() {
+                            return count;
+                        }
+                    };
+                }
+
+                @Override
+                public MalType get(Object k) {
+                    return k instanceof MalType ? find((MalType)k) : null;
+                }
+
+                @Override
+                public boolean containsKey(Object k) {
+                    return get(k) != null;
+                }
+            };
         }
 
         @Override
-        public HashMap<MalType,MalType> getJValue() {
-            return jValue;
+        public boolean equals(Object obj) {
+            if (this == obj) return true;
+            if (!(obj instanceof MalHash)) return false;
+
+            MalHash that = (MalHash)obj;
+            if (that.count != this.count) return false;
+
+            // get() would return nil for a key that isn't in that.
+            for (Map.Entry<MalType,MalType> entry : getJValue().entrySet()) {
+                MalType value = that.find(entry.getKey());
+                if (value == null || !entry.getValue().equals(value)) return false;
+            }
+            return true;
+        }
+
+        // The sum of the hash codes of the entries, which doesn't depend on
+        // their order, as for a java.util.Map.
+        @Override
+        public int hashCode() {
+            return getJValue().hashCode();
         }
 
         @Override
         public String pr_str(boolean readably) {
             StringJoiner result = new StringJoiner(" ", "{", "}");
 
-            for (HashMap.Entry<MalType,MalType> entry : jValue.entrySet()) {
+            for (Map.Entry<MalType,MalType> entry : getJValue().entrySet()) {
                 MalType key = entry.getKey();
                 MalType value = entry.getValue();
                 result.add(key.pr_str(readably) + " " + value.pr_str(readably));
@@ -287,17 +1215,215 @@ public class types {
         }
     }
 
+    // A node of the trie of a MalHash, holding the entries whose keys have
+    // hash codes with the same lowest shift bits.
+    private static abstract class HashNode {
+        // Return the value of key, or null.
+        abstract MalType find(int shift, int hash, MalType key);
+
+        // Return the node with key mapped to value, or this node if it
+        // already is. added[0] is set if the key is new.
+        abstract HashNode assoc(int shift, int hash, MalType key, MalType value, boolean[] added);
+
+        // Return the node without key, this node if it has no entry for it,
+        // or null if the node becomes empty.
+        abstract HashNode without(int shift, int hash, MalType key);
+
+        abstract void collect(List<Map.Entry<MalType,MalType>> entries);
+    }
+
+    private static final class BitmapNode extends HashNode {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+
+        final int bitmap;
+        // A key and a value for each bit set in the bitmap, or null and the
+        // subtrie of the keys with that value of the bits.
+        final Object[] array;
+
+        BitmapNode(int bitmap, Object[] array) {
+            this.bitmap = bitmap;
+            this.array = array;
+        }
+
+        private static int bit(int shift, int hash) {
+            return 1 << ((hash >>> shift) & 31);
+        }
+
+        private int index(int bit) {
+            return Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        MalType find(int shift, int hash, MalType key) {
+            int bit = bit(shift, hash);
+            if ((bitmap & bit) == 0) return null;
+
+            int i = index(bit);
+            Object k = array[2*i];
+            Object v = array[2*i+1];
+            if (k == null) return ((HashNode)v).find(shift + 5, hash, key);
+            return key.equals(k) ? (MalType)v : null;
+        }
+
+        @Override
+        HashNode assoc(int shift, int hash, MalType key, MalType value, boolean[] added) {
+            int bit = bit(shift, hash);
+            int i = index(bit);
+
+            if ((bitmap & bit) == 0) {
+                added[0] = true;
+                Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, 2*i);
+                newArray[2*i] = key;
+                newArray[2*i+1] = value;
+                System.arraycopy(array, 2*i, newArray, 2*i+2, array.length - 2*i);
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            Object k = array[2*i];
+            Object v = array[2*i+1];
+            Object[] newArray = array.clone();
+            if (k == null) {
+                HashNode node = ((HashNode)v).assoc(shift + 5, hash, key, value, added);
+                if (node == v) return this;
+                newArray[2*i+1] = node;
+            } else if (key.equals(k)) {
+                if (value == v) return this;
+                newArray[2*i+1] = value;
+            } else {
+                // Both entries move to a new subtrie.
+                added[0] = true;
+                newArray[2*i] = null;
+                newArray[2*i+1] = pair(shift + 5, (MalType)k, (MalType)v, hash, key, value);
+            }
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        private static HashNode pair(int shift, MalType key1, MalType value1, int hash2, MalType key2, MalType value2) {
+            int hash1 = key1.hashCode();
+            if (hash1 == hash2) return new CollisionNode(hash1, new Object[] { key1, value1, key2, value2 });
+
+            boolean[] added = new boolean[1];
+            return EMPTY.assoc(shift, hash1, key1, value1, added).assoc(shift, hash2, key2, value2, added);
+        }
+
+        @Override
+        HashNode without(int shift, int hash, MalType key) {
+            int bit = bit(shift, hash);
+            if ((bitmap & bit) == 0) return this;
+
+            int i = index(bit);
+            Object k = array[2*i];
+            Object v = array[2*i+1];
+            if (k == null) {
+                HashNode node = ((HashNode)v).without(shift + 5, hash, key);
+                if (node == v) return this;
+                if (node != null) {
+                    Object[] newArray = array.clone();
+                    newArray[2*i+1] = node;
+                    return new BitmapNode(bitmap, newArray);
+                }
+            } else if (!key.equals(k)) {
+                return this;
+            }
+
+            if (bitmap == bit) return null;
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, 2*i);
+            System.arraycopy(array, 2*i+2, newArray, 2*i, newArray.length - 2*i);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        @Override
+        void collect(List<Map.Entry<MalType,MalType>> entries) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (array[i] == null) ((HashNode)array[i+1]).collect(entries);
+                else entries.add(new AbstractMap.SimpleImmutableEntry<>((MalType)array[i], (MalType)array[i+1]));
+            }
+        }
+    }
+
+    private static final class CollisionNode extends HashNode {
+        final int hash;
+        // The keys and values.
+        final Object[] array;
+
+        CollisionNode(int hash, Object[] array) {
+            this.hash = hash;
+            this.array = array;
+        }
+
+        private int indexOf(MalType key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        MalType find(int shift, int hash, MalType key) {
+            int i = indexOf(key);
+            return i < 0 ? null : (MalType)array[i+1];
+        }
+
+        @Override
+        HashNode assoc(int shift, int hash, MalType key, MalType value, boolean[] added) {
+            if (hash != this.hash) {
+                // Put this node into a bitmap node of its own, and the new
+                // entry next to it.
+                Object[] nodes = { null, this };
+                return new BitmapNode(1 << ((this.hash >>> shift) & 31), nodes).assoc(shift, hash, key, value, added);
+            }
+
+            int i = indexOf(key);
+            if (i >= 0) {
+                if (array[i+1] == value) return this;
+                Object[] newArray = array.clone();
+                newArray[i+1] = value;
+                return new CollisionNode(hash, newArray);
+            }
+
+            added[0] = true;
+            Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length+1] = value;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        HashNode without(int shift, int hash, MalType key) {
+            int i = indexOf(key);
+            if (i < 0) return this;
+            if (array.length == 2) return null;
+
+            Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, i);
+            System.arraycopy(array, i+2, newArray, i, newArray.length - i);
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        void collect(List<Map.Entry<MalType,MalType>> entries) {
+            for (int i = 0; i < array.length; i += 2) {
+                entries.add(new AbstractMap.SimpleImmutableEntry<>((MalType)array[i], (MalType)array[i+1]));
+            }
+        }
+    }
+
     public static class MalString extends MalType {
         String jValue;
 
         public MalString(String jValue) {
             this.jValue = jValue;
-            type = "string";
         }
 
         public MalString(char c) {
             this.jValue = String.valueOf(c);
-            type = "string";
+        }
+
+        @Override
+        public String getType() {
+            return "string";
         }
 
         @Override
@@ -333,17 +1459,76 @@ public class types {
         }
     }
 
+    // Symbols and keywords are interned: there is a single instance for each
+    // name, made by intern(), so that they can be compared by identity, and
+    // their hash codes are computed once.
+
+    // The symbols and keywords by name. A name is interned for as long as
+    // something refers to its symbol or keyword: the table only holds weak
+    // references, and drops those that have been cleared whenever it adds
+    // an entry, so names that are created at runtime, e.g., with symbol or
+    // gensym, don't accumulate.
+    private static final class InternTable<T> {
+        private static final class Entry<T> extends WeakReference<T> {
+            final String name;
+
+            Entry(String name, T value, ReferenceQueue<T> queue) {
+                super(value, queue);
+                this.name = name;
+            }
+        }
+
+        private final ConcurrentHashMap<String,Entry<T>> table = new ConcurrentHashMap<>();
+        private final ReferenceQueue<T> cleared = new ReferenceQueue<>();
+        private final Function<String,T> create;
+
+        InternTable(Function<String,T> create) {
+            this.create = create;
+        }
+
+        T intern(String name) {
+            while (true) {
+                Entry<T> entry = table.get(name);
+                T value = entry == null ? null : entry.get();
+                if (value != null) return value;
+
+                expunge();
+                value = create.apply(name);
+                Entry<T> created = new Entry<>(name, value, cleared);
+                if (entry == null ? table.putIfAbsent(name, created) == null : table.replace(name, entry, created)) return value;
+            }
+        }
+
+        private void expunge() {
+            Object ref;
+            while ((ref = cleared.poll()) != null) {
+                Entry<?> entry = (Entry<?>)ref;
+                table.remove(entry.name, entry);
+            }
+        }
+    }
+
     public static class MalSymbol extends MalType implements Comparable<MalSymbol> {
-        String jValue;
+        private static final InternTable<MalSymbol> table = new InternTable<>(MalSymbol::new);
+
+        final String jValue;
+        private final int hash;
 
-        public MalSymbol(String name) {
+        private MalSymbol(String name) {
             this.jValue = name;
-            type = "symbol";
+            this.hash = name.hashCode();
+        }
+
+        /**
+         * Return the symbol with the given name.
+         */
+        public static MalSymbol intern(String name) {
+            return table.intern(name);
         }
 
-        public MalSymbol(MalString name) {
-            this.jValue = name.getJValue();
-            type = "symbol";
+        @Override
+        public String getType() {
+            return "symbol";
         }
 
         @Override
@@ -358,16 +1543,12 @@ public class types {
 
         @Override
         public boolean equals(Object obj) {
-            if (this == obj) return true;
-            if (!(obj instanceof MalSymbol)) return false;
-
-            MalSymbol that = (MalSymbol)obj;
-            return this.jValue.equals(that.jValue);
+            return this == obj;
         }
 
         @Override
         public int hashCode() {
-            return jValue.hashCode();
+            return hash;
         }
 
         @Override
@@ -380,16 +1561,26 @@ public class types {
     }
 
     public static class MalKeyword extends MalType implements Comparable<MalKeyword> {
-        String jValue;
+        private static final InternTable<MalKeyword> table = new InternTable<>(MalKeyword::new);
+
+        final String jValue;
+        private final int hash;
 
-        public MalKeyword(String name) {
+        private MalKeyword(String name) {
             this.jValue = name;
-            type = "keyword";
+            this.hash = name.hashCode();
         }
 
-        public MalKeyword(MalString name) {
-            this.jValue = name.getJValue();
-            type = "keyword";
+        /**
+         * Return the keyword with the given name, which includes the colon.
+         */
+        public static MalKeyword intern(String name) {
+            return table.intern(name);
+        }
+
+        @Override
+        public String getType() {
+            return "keyword";
         }
 
         @Override
@@ -402,9 +1593,14 @@ public class types {
             return jValue;
         }
 
+        @Override
+        public boolean equals(Object obj) {
+            return this == obj;
+        }
+
         @Override
         public int hashCode() {
-            return jValue.hashCode();
+            return hash;
         }
 
         @Override
@@ -414,21 +1610,25 @@ public class types {
     }
 
     private static class MalBoolean extends MalType {
-        Boolean jValue;
+        final boolean value;
 
         public MalBoolean(boolean value) {
-            this.jValue = value;
-            type = "boolean";
+            this.value = value;
+        }
+
+        @Override
+        public String getType() {
+            return "boolean";
         }
 
         @Override
         public Boolean getJValue() {
-            return jValue;
+            return value;
         }
 
         @Override
         public String pr_str(boolean readably) {
-            return jValue.toString();
+            return Boolean.toString(value);
         }
     }
 
@@ -443,8 +1643,9 @@ public class types {
     public static abstract class MalFunction extends MalType implements MalCallable, Cloneable {
         MalType metadata = Nil;
 
-        public MalFunction() {
-            type = "function";
+        @Override
+        public String getType() {
+            return "function";
         }
 
         @Override
@@ -465,6 +1666,30 @@ public class types {
             return "#<function@" + this.hashCode() + ">";
         }
 
+        // Calls with a fixed number of arguments, which don't have to be
+        // packed into a list first. A function overrides the ones it can
+        // handle directly; the others fall back to apply().
+
+        public MalType apply0() throws MalException {
+            return apply(new MalList());
+        }
+
+        public MalType apply1(MalType arg1) throws MalException {
+            return applyN(new MalType[] { arg1 });
+        }
+
+        public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+            return applyN(new MalType[] { arg1, arg2 });
+        }
+
+        public MalType apply3(MalType arg1, MalType arg2, MalType arg3) throws MalException {
+            return applyN(new MalType[] { arg1, arg2, arg3 });
+        }
+
+        public MalType applyN(MalType[] args) throws MalException {
+            return apply(new MalList(args, 0, args.length));
+        }
+
         @Override
         public MalFunction clone() {
             try {
@@ -491,11 +1716,7 @@ public class types {
         MalType ast;
         MalSequence params;
         Env env;
-        MalFunction fn;
-
-        public MalUserFunction() {
-            type = "function";
-        }
+        analyzer.Lambda lambda;
 
         @Override
         public Object getJValue() {
@@ -531,12 +1752,12 @@ public class types {
             return this.env;
         }
 
-        public void setFn(MalFunction fn) {
-            this.fn = fn;
+        public void setLambda(analyzer.Lambda lambda) {
+            this.lambda = lambda;
         }
 
-        public MalFunction getFn() {
-            return this.fn;
+        public analyzer.Lambda getLambda() {
+            return this.lambda;
         }
 
         public boolean isMacro() {
@@ -549,7 +1770,32 @@ public class types {
 
         @Override
         public MalType apply(MalList args) throws MalException {
-            return fn.apply(args);
+            return analyzer.invoke(lambda, lambda.bind(env, args));
+        }
+
+        @Override
+        public MalType apply0() throws MalException {
+            return analyzer.invoke(lambda, lambda.bind(env, 0, null, null, null));
+        }
+
+        @Override
+        public MalType apply1(MalType arg1) throws MalException {
+            return analyzer.invoke(lambda, lambda.bind(env, 1, arg1, null, null));
+        }
+
+        @Override
+        public MalType apply2(MalType arg1, MalType arg2) throws MalException {
+            return analyzer.invoke(lambda, lambda.bind(env, 2, arg1, arg2, null));
+        }
+
+        @Override
+        public MalType apply3(MalType arg1, MalType arg2, MalType arg3) throws MalException {
+            return analyzer.invoke(lambda, lambda.bind(env, 3, arg1, arg2, arg3));
+        }
+
+        @Override
+        public MalType applyN(MalType[] args) throws MalException {
+            return analyzer.invoke(lambda, lambda.bind(env, args));
         }
 
         @Override
@@ -560,7 +1806,7 @@ public class types {
             newFn.ast = this.ast;
             newFn.params = this.params;
             newFn.env = this.env;
-            newFn.fn = this.fn;
+            newFn.lambda = this.lambda;
             newFn.metadata = this.metadata;
 
             return newFn;
@@ -571,10 +1817,14 @@ public class types {
         MalType jValue;
 
         public MalAtom(MalType val) {
-            type = "atom";
             this.jValue = val;
         }
 
+        @Override
+        public String getType() {
+            return "atom";
+        }
+
         @Override
         public MalType getJValue() {
             return jValue;
@@ -591,6 +1841,32 @@ public class types {
 
     }
 
+    /**
+     * A value returned by a reducing function to end a reduction early.
+     */
+    public static class MalReduced extends MalType {
+        final MalType value;
+
+        public MalReduced(MalType value) {
+            this.value = value;
+        }
+
+        @Override
+        public String getType() {
+            return "reduced";
+        }
+
+        @Override
+        public MalType getJValue() {
+            return value;
+        }
+
+        @Override
+        public String pr_str(boolean readably) {
+            return "(reduced " + value.pr_str(readably) + ")";
+        }
+    }
+
     public static class MalException extends Exception {
         private static final long serialVersionUID = 3809884595479541313L;
 
@@ -627,10 +1903,14 @@ public class types {
         MalType errVal;
 
         public MalError(MalType value) {
-            type = "error";
             this.errVal = value;
         }
 
+        @Override
+        public String getType() {
+            return "error";
+        }
+
         @Override
         public Object getJValue() {
             return new MalException(errVal);
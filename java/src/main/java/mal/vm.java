@@ -0,0 +1,692 @@
+package mal;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import mal.analyzer.Call;
+import mal.analyzer.Composite;
+import mal.analyzer.Const;
+import mal.analyzer.Def;
+import mal.analyzer.Do;
+import mal.analyzer.If;
+import mal.analyzer.Lambda;
+import mal.analyzer.Let;
+import mal.analyzer.LocalRef;
+import mal.analyzer.Loop;
+import mal.analyzer.Node;
+import mal.analyzer.Recur;
+import mal.analyzer.SymbolRef;
+import mal.analyzer.TryCatch;
+import mal.env.Env;
+import mal.optimizer.Folded;
+import mal.types.LazySeqException;
+import mal.types.MalError;
+import mal.types.MalException;
+import mal.types.MalFunction;
+import mal.types.MalSymbol;
+import mal.types.MalType;
+import mal.types.MalUserFunction;
+
+public class vm {
+    // A bytecode virtual machine. Analyzed code is compiled into chunks: a
+    // flat array of instructions with their operands, and a table of
+    // constants. The machine executes a chunk with an operand stack for
+    // intermediate values and a frame stack for the chunks that are waiting
+    // for a call to return. A function's body is compiled the first time the
+    // function is called on the machine, and a macro expansion the first time
+    // it is evaluated.
+    //
+    // Like the explicit-stack machine, the VM doesn't use the Java stack for
+    // calls between user functions. Nodes that are rare in hot code, such as
+    // fn*, are evaluated by the tree-walking evaluator.
+    //
+    // The VM is used when the system property mal.engine is set to `vm'.
+
+    static final boolean enabled = System.getProperty("mal.engine", "tree").equals("vm");
+
+    // Instructions. The operands follow the opcode; k is an index into the
+    // constants, t an instruction index.
+    private static final int CONST = 0;         // k: push a constant
+    private static final int LOCAL = 1;         // depth, slot, k: push a local variable
+    private static final int NODE = 2;          // k: push the value of a node
+    private static final int POP = 3;           // drop the top of the stack
+    private static final int JUMP = 4;          // t
+    private static final int JUMP_IF_FALSE = 5; // t: pop, and jump if nil or false
+    private static final int ENTER = 6;         // k: create a frame with the names in k
+    private static final int LEAVE = 7;         // return to the enclosing frame
+    private static final int BIND = 8;          // slot: pop into the current frame
+    private static final int DEF = 9;           // k: bind the top of the stack with def!
+    private static final int FOLDED = 10;       // k, t: jump if a folded node is stale
+    private static final int MACRO = 11;        // k, t: expand a macro call, continue at t
+    private static final int TAIL_MACRO = 12;   // k: expand a macro call in tail position
+    private static final int CALL = 13;         // n: call with n arguments
+    private static final int TAIL_CALL = 14;    // n: call in tail position
+    private static final int RETURN = 15;       // return the top of the stack
+    private static final int TRY = 16;          // t, k: install a handler at t binding k
+    private static final int END_TRY = 17;      // remove the innermost handler
+    private static final int RECUR = 18;        // depth, k, r: rebind the variables of a loop*, in another chunk if r
+    private static final int RECUR_CHECK = 19;  // depth, t: continue a loop* after a recur
+    private static final int BUILD = 20;        // k, n: pop n values and build a literal from them
+
+    /**
+     * Compiled code.
+     */
+    static final class Chunk {
+        final int[] code;
+        final Object[] constants;
+
+        Chunk(int[] code, Object[] constants) {
+            this.code = code;
+            this.constants = constants;
+        }
+    }
+
+    // The operand stack.
+    private static MalType[] stack = new MalType[256];
+    private static int sp = 0;
+
+    // The frame stack holds the chunk, the instruction to continue at, the
+    // environment and the operand stack base of each suspended chunk.
+    private static Chunk[] chunks = new Chunk[64];
+    private static int[] pcs = new int[64];
+    private static Env[] envs = new Env[64];
+    private static int[] bases = new int[64];
+    private static int fp = 0;
+
+    // The handler stack holds the frame, the handler, the environment, the
+    // operand stack height and the catch variable of each active try*.
+    private static int[] handlerFrames = new int[16];
+    private static int[] handlerPcs = new int[16];
+    private static Env[] handlerEnvs = new Env[16];
+    private static int[] handlerSps = new int[16];
+    private static MalSymbol[][] handlerVars = new MalSymbol[16][];
+    private static int hp = 0;
+
+    // Return the value in slot i of the stack and clear the slot. The
+    // arguments of a builtin are passed this way, so that neither the stack
+    // nor a local of run keeps them while the builtin runs, e.g., the head
+    // of a lazy sequence it walks.
+    private static MalType take(MalType[] s, int i) {
+        MalType value = s[i];
+        s[i] = null;
+        return value;
+    }
+
+    private static void pushFrame(Chunk chunk, int pc, Env env, int base) {
+        if (fp == chunks.length) {
+            int size = 2 * fp;
+            chunks = Arrays.copyOf(chunks, size);
+            pcs = Arrays.copyOf(pcs, size);
+            envs = Arrays.copyOf(envs, size);
+            bases = Arrays.copyOf(bases, size);
+        }
+        chunks[fp] = chunk;
+        pcs[fp] = pc;
+        envs[fp] = env;
+        bases[fp] = base;
+        fp++;
+    }
+
+    private static void pushHandler(int pc, Env env, MalSymbol[] vars) {
+        if (hp == handlerPcs.length) {
+            int size = 2 * hp;
+            handlerFrames = Arrays.copyOf(handlerFrames, size);
+            handlerPcs = Arrays.copyOf(handlerPcs, size);
+            handlerEnvs = Arrays.copyOf(handlerEnvs, size);
+            handlerSps = Arrays.copyOf(handlerSps, size);
+            handlerVars = Arrays.copyOf(handlerVars, size);
+        }
+        handlerFrames[hp] = fp;
+        handlerPcs[hp] = pc;
+        handlerEnvs[hp] = env;
+        handlerSps[hp] = sp;
+        handlerVars[hp] = vars;
+        hp++;
+    }
+
+    private static Chunk chunkOf(Lambda lambda) {
+        if (lambda.chunk == null) lambda.chunk = compile(lambda.body);
+        return lambda.chunk;
+    }
+
+    private static Chunk expansionOf(Call call, MalUserFunction macro) throws MalException {
+        Node expansion = call.expand(macro);
+        if (call.expansionChunk == null) call.expansionChunk = compile(expansion);
+        return call.expansionChunk;
+    }
+
+    /**
+     * Call a user function.
+     *
+     * @param lambda The code of the function to be called.
+     * @param env The frame the arguments have been bound in.
+     */
+    static MalType call(Lambda lambda, Env env) throws MalException {
+        return run(chunkOf(lambda), env);
+    }
+
+    /**
+     * Evaluate an analyzed form.
+     *
+     * @param node The form to be evaluated.
+     * @param env The environment to evaluate the form in.
+     */
+    static MalType execute(Node node, Env env) throws MalException {
+        return run(compile(node), env);
+    }
+
+    // Run a chunk to completion. The machine is reentrant: a builtin such as
+    // map that calls a user function starts a nested run on top of the
+    // current one, which only unwinds its own frames and handlers.
+    //
+    // The loop keeps the operand stack and its height in local variables.
+    // Before anything that may start a nested run, the height is stored in
+    // sp, and afterwards the stack is reloaded, as the nested run may have
+    // grown it.
+    //
+    // A call to a builtin in tail position falls through from CALL into
+    // RETURN, so the value is returned without dispatching another
+    // instruction.
+    @SuppressWarnings("fallthrough")
+    private static MalType run(Chunk chunk, Env env) throws MalException {
+        int frameBase = fp;
+        int handlerBase = hp;
+        int stackBase = sp;
+
+        int[] code = chunk.code;
+        Object[] k = chunk.constants;
+        int pc = 0;
+        int base = sp;
+        MalType[] s = stack;
+        int top = sp;
+
+        try {
+            while (true) {
+                try {
+                    while (true) {
+                        // No instruction pushes more than one value.
+                        if (top == s.length) s = stack = Arrays.copyOf(s, 2 * top);
+
+                        switch (code[pc++]) {
+                        case CONST:
+                            s[top++] = (MalType)k[code[pc++]];
+                            break;
+
+                        case LOCAL: {
+                            Env frame = env;
+                            for (int i = code[pc++]; i > 0; i--) {
+                                frame = frame.outer;
+                            }
+                            MalType value = frame.slots[code[pc++]];
+                            if (value == null) {
+                                sp = top;
+                                value = ((Node)k[code[pc]]).eval(env);
+                                s = stack;
+                            }
+                            pc++;
+                            s[top++] = value;
+                            break;
+                        }
+
+                        case NODE: {
+                            sp = top;
+                            MalType value = ((Node)k[code[pc++]]).run(env);
+                            s = stack;
+                            s[top++] = value;
+                            break;
+                        }
+
+                        case POP:
+                            s[--top] = null;
+                            break;
+
+                        case BUILD: {
+                            Composite composite = (Composite)k[code[pc++]];
+                            int n = code[pc++];
+                            MalType[] values = Arrays.copyOfRange(s, top - n, top);
+                            Arrays.fill(s, top - n, top, null);
+                            top -= n;
+                            sp = top;
+                            s[top++] = composite.build(values);
+                            break;
+                        }
+
+                        case JUMP:
+                            pc = code[pc];
+                            break;
+
+                        case JUMP_IF_FALSE: {
+                            MalType value = s[--top];
+                            s[top] = null;
+                            if (value == types.Nil || value == types.False) pc = code[pc];
+                            else pc++;
+                            break;
+                        }
+
+                        case ENTER:
+                            env = new Env(env, (MalSymbol[])k[code[pc++]]);
+                            break;
+
+                        case LEAVE:
+                            env = env.outer;
+                            break;
+
+                        case BIND:
+                            env.slots[code[pc++]] = s[--top];
+                            s[top] = null;
+                            break;
+
+                        case DEF:
+                            s[top-1] = ((Def)k[code[pc++]]).assign(env, s[top-1]);
+                            break;
+
+                        case FOLDED: {
+                            Folded folded = (Folded)k[code[pc++]];
+                            if (folded.select() != folded.folded) pc = code[pc];
+                            else pc++;
+                            break;
+                        }
+
+                        case MACRO:
+                        case TAIL_MACRO: {
+                            boolean tail = code[pc-1] == TAIL_MACRO;
+                            Call call = (Call)k[code[pc]];
+                            MalType fn = s[top-1];
+                            if (!call.isMacroCall(fn)) {
+                                pc += tail ? 1 : 2;
+                                break;
+                            }
+
+                            // The expansion is evaluated in the same
+                            // environment, in a frame of its own.
+                            s[--top] = null;
+                            sp = top;
+                            Chunk expansion = expansionOf(call, (MalUserFunction)fn);
+                            s = stack;
+                            if (tail) {
+                                Arrays.fill(s, base, top, null);
+                                top = base;
+                            } else {
+                                pushFrame(chunk, code[pc+1], env, base);
+                                base = top;
+                            }
+                            chunk = expansion;
+                            code = chunk.code;
+                            k = chunk.constants;
+                            pc = 0;
+                            break;
+                        }
+
+                        case CALL:
+                        case TAIL_CALL: {
+                            boolean tail = code[pc-1] == TAIL_CALL;
+                            int nArgs = code[pc++];
+                            int callee = top - nArgs - 1;
+                            MalType fn = s[callee];
+                            if (!(fn instanceof MalFunction)) throw new MalException("Eval error: `" + fn + "' is not a function.");
+
+                            if (fn instanceof MalUserFunction) {
+                                MalUserFunction userFn = (MalUserFunction)fn;
+                                Lambda lambda = userFn.getLambda();
+                                Env callEnv;
+                                switch (nArgs) {
+                                case 0: callEnv = lambda.bind(userFn.getEnv(), 0, null, null, null); break;
+                                case 1: callEnv = lambda.bind(userFn.getEnv(), 1, s[callee+1], null, null); break;
+                                case 2: callEnv = lambda.bind(userFn.getEnv(), 2, s[callee+1], s[callee+2], null); break;
+                                case 3: callEnv = lambda.bind(userFn.getEnv(), 3, s[callee+1], s[callee+2], s[callee+3]); break;
+                                default: callEnv = lambda.bind(userFn.getEnv(), Arrays.copyOfRange(s, callee + 1, top));
+                                }
+
+                                if (tail) {
+                                    Arrays.fill(s, base, top, null);
+                                    top = base;
+                                } else {
+                                    Arrays.fill(s, callee, top, null);
+                                    top = callee;
+                                    pushFrame(chunk, pc, env, base);
+                                    base = top;
+                                }
+                                chunk = chunkOf(lambda);
+                                code = chunk.code;
+                                k = chunk.constants;
+                                pc = 0;
+                                env = callEnv;
+                                break;
+                            }
+
+                            MalFunction builtin = (MalFunction)fn;
+                            MalType result;
+                            int end = top;
+                            top = callee + 1;
+                            sp = top;
+                            switch (nArgs) {
+                            case 0: result = builtin.apply0(); break;
+                            case 1: result = builtin.apply1(take(s, callee+1)); break;
+                            case 2: result = builtin.apply2(take(s, callee+1), take(s, callee+2)); break;
+                            case 3: result = builtin.apply3(take(s, callee+1), take(s, callee+2), take(s, callee+3)); break;
+                            default:
+                                MalType[] args = Arrays.copyOfRange(s, callee + 1, end);
+                                Arrays.fill(s, callee + 1, end, null);
+                                result = builtin.applyN(args);
+                            }
+                            s = stack;
+                            s[callee] = result;
+
+                            if (!tail) break;
+                            // A builtin in tail position returns its value:
+                            // fall through.
+                        }
+
+                        case RETURN: {
+                            MalType value = s[top-1];
+                            Arrays.fill(s, base, top, null);
+                            top = base;
+                            if (fp == frameBase) return value;
+
+                            fp--;
+                            chunk = chunks[fp];
+                            code = chunk.code;
+                            k = chunk.constants;
+                            pc = pcs[fp];
+                            env = envs[fp];
+                            base = bases[fp];
+                            chunks[fp] = null;
+                            envs[fp] = null;
+                            s[top++] = value;
+                            break;
+                        }
+
+                        case TRY:
+                            sp = top;
+                            pushHandler(code[pc], env, (MalSymbol[])k[code[pc+1]]);
+                            pc += 2;
+                            break;
+
+                        case END_TRY:
+                            hp--;
+                            handlerEnvs[hp] = null;
+                            break;
+
+                        case RECUR: {
+                            budget.step();
+                            Env loopEnv = env;
+                            for (int i = code[pc++]; i > 0; i--) {
+                                loopEnv = loopEnv.outer;
+                            }
+                            Recur recur = (Recur)k[code[pc++]];
+                            int n = recur.slots.length;
+                            Env frame = recur.frame(loopEnv);
+                            for (int i = 0; i < n; i++) {
+                                frame.slots[recur.slots[i]] = s[top-n+i];
+                            }
+                            Arrays.fill(s, top - n, top, null);
+                            top -= n;
+                            env = frame;
+
+                            // A loop* in the chunk this one returns to
+                            // continues in the copy of its frame.
+                            if (code[pc++] != 0 && frame != loopEnv) analyzer.recurFrame = frame;
+                            break;
+                        }
+
+                        case RECUR_CHECK: {
+                            if (s[top-1] != analyzer.RECUR) {
+                                pc += 2;
+                                break;
+                            }
+                            s[--top] = null;
+                            for (int i = code[pc]; i > 0; i--) {
+                                env = env.outer;
+                            }
+                            env = analyzer.nextFrame(env);
+                            pc = code[pc+1];
+                            break;
+                        }
+
+                        default:
+                            throw new IllegalStateException("Invalid instruction " + code[pc-1] + ".");
+                        }
+                    }
+                } catch(MalException | LazySeqException caught) {
+                    MalException ex = LazySeqException.unwrap(caught);
+                    if (hp == handlerBase) throw ex;
+
+                    metrics.exceptions++;
+                    // Unwind to the innermost try* of this run.
+                    hp--;
+                    int frame = handlerFrames[hp];
+                    if (frame < fp) {
+                        chunk = chunks[frame];
+                        code = chunk.code;
+                        k = chunk.constants;
+                        base = bases[frame];
+                        Arrays.fill(chunks, frame, fp, null);
+                        Arrays.fill(envs, frame, fp, null);
+                        fp = frame;
+                    }
+                    s = stack;
+                    Arrays.fill(s, handlerSps[hp], Math.max(top, handlerSps[hp]), null);
+                    top = handlerSps[hp];
+                    pc = handlerPcs[hp];
+
+                    env = new Env(handlerEnvs[hp], handlerVars[hp]);
+                    env.slots[0] = new MalError(ex.getErrVal());
+                    handlerEnvs[hp] = null;
+                }
+            }
+        } finally {
+            Arrays.fill(stack, stackBase, Math.max(top, stackBase), null);
+            sp = stackBase;
+            Arrays.fill(chunks, frameBase, Math.max(fp, frameBase), null);
+            Arrays.fill(envs, frameBase, Math.max(fp, frameBase), null);
+            fp = frameBase;
+            Arrays.fill(handlerEnvs, handlerBase, Math.max(hp, handlerBase), null);
+            hp = handlerBase;
+        }
+    }
+
+    /**
+     * Compile an analyzed form into a chunk that returns its value.
+     *
+     * @param node The form to be compiled.
+     */
+    static Chunk compile(Node node) {
+        Compiler compiler = new Compiler();
+        compiler.compile(node, true, false);
+        compiler.emit(RETURN);
+        return new Chunk(Arrays.copyOf(compiler.code, compiler.length), compiler.constants.toArray());
+    }
+
+    private static final class Compiler {
+        int[] code = new int[64];
+        int length = 0;
+        final List<Object> constants = new ArrayList<>();
+
+        // The number of frames entered so far, and the frame depth and the
+        // start of each loop* that is being compiled.
+        int depth = 0;
+        final List<int[]> loops = new ArrayList<>();
+
+        void emit(int value) {
+            if (length == code.length) code = Arrays.copyOf(code, 2 * length);
+            code[length++] = value;
+        }
+
+        void emit(int opcode, int operand) {
+            emit(opcode);
+            emit(operand);
+        }
+
+        int constant(Object value) {
+            constants.add(value);
+            return constants.size() - 1;
+        }
+
+        // Emit a jump with a target to be patched, and return its position.
+        int jump(int opcode) {
+            emit(opcode, -1);
+            return length - 1;
+        }
+
+        void patch(int position) {
+            code[position] = length;
+        }
+
+        // Emit code that pushes the value of node. tail is true if the value
+        // is returned by the chunk, and loop is true if it is the value of the
+        // body of a loop* in this chunk.
+        void compile(Node node, boolean tail, boolean loop) {
+            if (node instanceof Const) {
+                emit(CONST, constant(((Const)node).value));
+            } else if (node instanceof LocalRef) {
+                LocalRef ref = (LocalRef)node;
+                emit(LOCAL, ref.depth);
+                emit(ref.slot);
+                emit(constant(ref));
+            } else if (node instanceof If) {
+                If ifNode = (If)node;
+                compile(ifNode.test, false, false);
+                int otherwise = jump(JUMP_IF_FALSE);
+                compile(ifNode.then, tail, loop);
+                int end = jump(JUMP);
+                patch(otherwise);
+                compile(ifNode.otherwise, tail, loop);
+                patch(end);
+            } else if (node instanceof Do) {
+                Node[] body = ((Do)node).body;
+                for (int i = 0; i < body.length - 1; i++) {
+                    compile(body[i], false, false);
+                    emit(POP);
+                }
+                compile(body[body.length - 1], tail, loop);
+            } else if (node instanceof Let) {
+                Let let = (Let)node;
+                emit(ENTER, constant(let.names));
+                depth++;
+                for (int i = 0; i < let.values.length; i++) {
+                    compile(let.values[i], false, false);
+                    emit(BIND, let.slots[i]);
+                }
+                compile(let.body, tail, loop);
+                emit(LEAVE);
+                depth--;
+            } else if (node instanceof Loop) {
+                compileLoop((Loop)node, tail);
+            } else if (node instanceof Recur) {
+                compileRecur((Recur)node);
+            } else if (node.getClass() == Def.class) {
+                compile(((Def)node).value, false, false);
+                emit(DEF, constant(node));
+            } else if (node instanceof TryCatch) {
+                compileTryCatch((TryCatch)node);
+            } else if (node instanceof Call) {
+                compileCall((Call)node, tail, loop);
+            } else if (node instanceof Composite) {
+                Composite composite = (Composite)node;
+                for (Node part : composite.parts) {
+                    compile(part, false, false);
+                }
+                emit(BUILD, constant(composite));
+                emit(composite.parts.length);
+            } else if (node instanceof Folded) {
+                Folded folded = (Folded)node;
+                emit(FOLDED, constant(folded));
+                int original = length;
+                emit(-1);
+                compile(folded.folded, tail, loop);
+                int end = jump(JUMP);
+                patch(original);
+                compile(folded.original, tail, loop);
+                patch(end);
+            } else {
+                emit(NODE, constant(node));
+            }
+        }
+
+        void compileLoop(Loop node, boolean tail) {
+            emit(ENTER, constant(node.names));
+            depth++;
+            for (int i = 0; i < node.values.length; i++) {
+                compile(node.values[i], false, false);
+                emit(BIND, node.slots[i]);
+            }
+
+            loops.add(new int[] { depth, length });
+            compile(node.body, tail, true);
+            loops.remove(loops.size() - 1);
+
+            emit(LEAVE);
+            depth--;
+        }
+
+        // A recur jumps back to its loop* if the loop is in this chunk. If it
+        // isn't, the recur is part of a macro expansion in the loop's body, and
+        // the chunk returns a marker that the loop checks for.
+        void compileRecur(Recur node) {
+            for (Node value : node.values) {
+                compile(value, false, false);
+            }
+            emit(RECUR, node.depth);
+            emit(constant(node));
+            emit(loops.isEmpty() ? 1 : 0);
+
+            if (loops.isEmpty()) {
+                emit(CONST, constant(analyzer.RECUR));
+                emit(RETURN);
+            } else {
+                emit(JUMP, loops.get(loops.size() - 1)[1]);
+            }
+        }
+
+        void compileTryCatch(TryCatch node) {
+            emit(TRY);
+            int handler = length;
+            emit(-1);
+            emit(constant(node.catchVar));
+            compile(node.body, false, false);
+            emit(END_TRY);
+            int end = jump(JUMP);
+
+            patch(handler);
+            depth++;
+            compile(node.handler, false, false);
+            emit(LEAVE);
+            depth--;
+            patch(end);
+        }
+
+        void compileCall(Call node, boolean tail, boolean loop) {
+            compile(node.head, false, false);
+
+            // Only a call whose head is a symbol can be a macro call. In the
+            // body of a loop*, the expansion may contain a recur, so it has to
+            // return here rather than replace the chunk.
+            boolean macro = node.head instanceof SymbolRef;
+            int after = -1;
+            if (macro) {
+                if (tail && !loop) {
+                    emit(TAIL_MACRO, constant(node));
+                } else {
+                    emit(MACRO, constant(node));
+                    after = length;
+                    emit(-1);
+                }
+            }
+
+            for (Node arg : node.args) {
+                compile(arg, false, false);
+            }
+            emit(tail ? TAIL_CALL : CALL, node.args.length);
+
+            if (after >= 0) {
+                patch(after);
+                if (loop) {
+                    int[] target = loops.get(loops.size() - 1);
+                    emit(RECUR_CHECK, depth - target[0]);
+                    emit(target[1]);
+                }
+            }
+        }
+    }
+}
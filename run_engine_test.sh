@@ -0,0 +1,111 @@
+#!/bin/bash
+
+#
+# Usage: run_engine_test.sh <command line arguments to run mal>
+#
+# Example: run_engine_test.sh java -cp $PWD/java/target/classes mal.stepA_mal
+#
+# The step tests are run in the java directory, as by the Makefile, so the
+# command line must not depend on the current directory.
+#
+
+assert_equal() {
+  if [ "$1" = "$2" ] ; then
+    echo "OK: '$1'"
+  else
+    echo "FAIL: Expected '$1' but got '$2'"
+    echo
+    exit 1
+  fi
+}
+
+# Run a file of mal tests with runtest.py, showing its output only if a
+# test fails.
+run_tests() {
+  local file="$1"
+  shift
+  if out="$( python3 $root/runtest.py $file -- "$@" 2>&1 )" ; then
+    echo "OK: $file with $*"
+  else
+    echo "$out"
+    echo "FAIL: $file with $*"
+    echo
+    exit 1
+  fi
+}
+
+if [ -z "$1" ] ; then
+  echo "Usage: $0 <command line arguments to run mal>"
+  exit 1
+fi
+
+root="$(cd "$(dirname $0)" && pwd)"
+
+for engine in stack vm ; do
+  out="$( $@ --engine=$engine $root/tests/deep_recursion.mal | tr -d '\r' )"
+  assert_equal '5000050000 1 2' "$out"
+done
+
+out="$( $@ --engine=bogus $root/tests/deep_recursion.mal | tr -d '\r' )"
+assert_equal 'Unknown engine: bogus.' "$out"
+
+for engine in tree stack vm ; do
+  run_tests $root/tests/java_ext.mal $@ --engine=$engine
+done
+
+# The profiler only instruments the tree-walking evaluator. The times vary,
+# so only the calls and the names are compared.
+out="$( $@ --engine=tree $root/tests/profile.mal | tr -d '\r' | awk 'NR > 2 { printf "%s %s;", $1, $4 }' )"
+assert_equal '177 fib;1 go;' "$out"
+
+for engine in stack vm ; do
+  out="$( $@ --engine=$engine $root/tests/profile.mal | tr -d '\r' )"
+  assert_equal 'Error: The profiler requires mal.engine=tree.' "$out"
+done
+
+# The sampling profiler writes one line for each distinct stack, the names
+# of the functions from the outermost one separated by semicolons, and the
+# number of samples of it.
+samples="$(mktemp)"
+$@ --engine=tree --sample=$samples --sample-interval=1 $root/tests/sample.mal > /dev/null
+out="$( awk '/^load-file(;go(;fib)*)? [1-9][0-9]*$/ { if (/fib/) fib = 1; next } { print "Invalid line: " $0; bad = 1; exit } END { if (fib && !bad) print "go;fib" }' $samples )"
+rm -f $samples
+assert_equal 'go;fib' "$out"
+
+for engine in stack vm ; do
+  out="$( $@ --engine=$engine --sample=/dev/null $root/tests/sample.mal | tr -d '\r' )"
+  assert_equal 'The sampling profiler requires mal.engine=tree.' "$out"
+done
+
+# Past its limit, an evaluation throws an exception that try* catches, and
+# so does every following step, which ends the script.
+for engine in tree stack vm ; do
+  out="$( $@ --engine=$engine --fuel=10000 $root/tests/budget.mal | tr -d '\r' | tr '\n' ';' )"
+  assert_equal '"Evaluation exceeded its limit of 10000 steps.";Error: Evaluation exceeded its limit of 10000 steps.;' "$out"
+  out="$( $@ --engine=$engine --timeout=200 $root/tests/budget.mal | tr -d '\r' | tr '\n' ';' )"
+  assert_equal '"Evaluation exceeded its time limit of 200 ms.";Error: Evaluation exceeded its time limit of 200 ms.;' "$out"
+done
+
+# Walking a lazy sequence keeps none of it when nothing else holds its
+# head, so the walks fit in a heap much smaller than the sequences.
+for engine in tree stack vm ; do
+  out="$( JAVA_TOOL_OPTIONS=-Xmx48m $@ --engine=$engine $root/tests/lazy_walk.mal 2> /dev/null | tr -d '\r' | tr '\n' ';' )"
+  assert_equal '3000000;3000000;3000000;3000000;4499998500000;4499998500000;4499998500000;4499998500000;' "$out"
+done
+
+# The calls folded by the optimizer are evaluated again once + is
+# redefined. The number of nodes eliminated doesn't depend on the engine.
+for engine in tree stack vm ; do
+  out="$( $@ --engine=$engine --optimize=report $root/tests/optimize.mal 2>&1 | tr -d '\r' | tr '\n' ';' )"
+  assert_equal '3 4;-1 4;Optimizer: eliminated 7 nodes.;' "$out"
+done
+
+# Every function is compiled when it is first called, so that the step
+# tests exercise the compiler, which fails on code it cannot compile.
+for step in step2_eval step3_env step4_if_fn_do step5_tco step6_file \
+            step7_quote step8_macros step9_try stepA_mal ; do
+  ( cd $root/java && run_tests ../tests/$step.mal $@ --jit=always ) || exit 1
+done
+
+echo 'Passed all engine tests'
+echo